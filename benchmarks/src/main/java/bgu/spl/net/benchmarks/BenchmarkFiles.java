@@ -0,0 +1,61 @@
+package bgu.spl.net.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * The files the benchmarks download. Like the server, the benchmarks use the Files
+ * directory of the working directory.
+ */
+final class BenchmarkFiles {
+
+    static final Path DIRECTORY = Paths.get("Files");
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Creates 'Files/filename' with 'size' random bytes (the same bytes on every run), unless it already has this size.
+     */
+    static Path create(String filename, long size) throws IOException {
+        Files.createDirectories(DIRECTORY);
+        Path file = DIRECTORY.resolve(filename);
+        if (Files.exists(file) && Files.size(file) == size)
+            return file;
+
+        Random random = new Random(size);
+        byte[] chunk = new byte[1 << 16];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * The server logs a line for every transfer (and for every packet at TRACE level) - the lines are
+     * still logged (as in the server), but are not written to the console of the benchmark.
+     */
+    static void discardServerOutput() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    /**
+     * @param size - a size such as 1KB, 1MB or 100MB
+     */
+    static long parseSize(String size) {
+        long unit = 1;
+        if (size.endsWith("KB"))
+            unit = 1L << 10;
+        else if (size.endsWith("MB"))
+            unit = 1L << 20;
+        return Long.parseLong(size.replaceAll("[^0-9]", "")) * unit;
+    }
+}
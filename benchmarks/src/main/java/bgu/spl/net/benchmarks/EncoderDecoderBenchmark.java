@@ -0,0 +1,69 @@
+package bgu.spl.net.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+
+/**
+ * Decoding throughput of the server's TftpEncoderDecoder per packet type - byte by byte
+ * (decodeNextByte) and in bulk from a buffer (decode). Every operation decodes a single packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderDecoderBenchmark {
+
+    @Param({ "RRQ", "DATA_512", "DATA_65464", "ACK", "ERROR", "BCAST", "DIRQ", "OPT" })
+    public String packetType;
+
+    private byte[] packet;
+    private ByteBuffer buffer;
+    private TftpEncoderDecoder encdec;
+
+    @Setup
+    public void setup() {
+        switch (packetType) {
+            case "RRQ": packet = Packets.rrq("this is a file with spaces.txt"); break;
+            case "DATA_512": packet = Packets.data(1, new byte[512], 0, 512); break;
+            case "DATA_65464": packet = Packets.data(1, new byte[65464], 0, 65464); break;
+            case "ACK": packet = Packets.ack(1); break;
+            case "ERROR": packet = Packets.error(1, "File not found"); break;
+            case "BCAST": packet = Packets.bcast(true, "this is a file with spaces.txt"); break;
+            case "DIRQ": packet = Packets.dirq(); break;
+            case "OPT": packet = Packets.opt("blksize", "65464"); break;
+            default: throw new IllegalArgumentException("Unknown packet type: " + packetType);
+        }
+        buffer = ByteBuffer.wrap(packet);
+        encdec = new TftpEncoderDecoder();
+    }
+
+    @Benchmark
+    public byte[] decodeNextByte() {
+        byte[] message = null;
+        for (int i = 0; i < packet.length; i++)
+            message = encdec.decodeNextByte(packet[i]);
+        return message;
+    }
+
+    @Benchmark
+    public byte[] decodeBuffer() {
+        buffer.clear();
+        return encdec.decode(buffer);
+    }
+}
@@ -0,0 +1,127 @@
+package bgu.spl.net.benchmarks;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.net.api.BidiMessagingProtocol;
+import bgu.spl.net.impl.tftp.DirectoryIndex;
+import bgu.spl.net.impl.tftp.FileCache;
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+import bgu.spl.net.impl.tftp.TftpProtocol;
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.Server;
+
+/**
+ * Whole file transfers between a client and a server over the loopback interface.
+ * The server runs in the benchmark's JVM, with its default file cache (files up to 16MB are served from memory).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    @Param({ "1KB", "1MB", "100MB" })
+    public String fileSize;
+
+    @Param({ "tpc", "reactor" })
+    public String serverMode;
+
+    /**
+     * Block size / window size - the protocol's defaults, and the options the client requests
+     */
+    @Param({ "512/1", "65464/16" })
+    public String transferOptions;
+
+    private Server<byte[]> server;
+    private LoopbackClient client;
+    private String filename;
+    private byte[] content;
+    private int blockSize;
+    private int windowSize;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        BenchmarkFiles.discardServerOutput();
+        filename = "loopback-benchmark-" + fileSize + ".bin";
+        Path file = BenchmarkFiles.create(filename, BenchmarkFiles.parseSize(fileSize));
+        content = Files.readAllBytes(file);
+        blockSize = Integer.parseInt(transferOptions.split("/")[0]);
+        windowSize = Integer.parseInt(transferOptions.split("/")[1]);
+
+        int port;
+        try (ServerSocket freePort = new ServerSocket(0)) {
+            port = freePort.getLocalPort();
+        }
+
+        FileCache fileCache = new FileCache(BenchmarkFiles.DIRECTORY, 64L << 20);
+        DirectoryIndex directoryIndex = new DirectoryIndex(BenchmarkFiles.DIRECTORY, fileCache::invalidate);
+        Supplier<BidiMessagingProtocol<byte[]>> protocolFactory = () -> new TftpProtocol(fileCache, directoryIndex);
+
+        if (serverMode.equals("reactor"))
+            server = Server.reactor(Runtime.getRuntime().availableProcessors(), port, protocolFactory,
+                    TftpEncoderDecoder::new, new ConnectionsImpl<>());
+        else
+            server = Server.threadPerClient(port, protocolFactory, TftpEncoderDecoder::new, new ConnectionsImpl<>());
+
+        Thread serverThread = new Thread(server::serve, "loopback-benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        client = connect(port);
+        client.login("loopback-benchmark");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.disconnect();
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        return client.download(filename, blockSize, windowSize);
+    }
+
+    /**
+     * Uploads the file, followed by a DELRQ of the uploaded file (so that the next upload succeeds).
+     */
+    @Benchmark
+    public long upload() throws IOException {
+        client.uploadAndDelete("uploaded-" + filename, content, blockSize);
+        return content.length;
+    }
+
+    private static LoopbackClient connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new LoopbackClient("localhost", port);
+            } catch (ConnectException ex) { //The server has not started listening yet
+                if (attempt == 50)
+                    throw ex;
+                Thread.sleep(100);
+            }
+        }
+    }
+}
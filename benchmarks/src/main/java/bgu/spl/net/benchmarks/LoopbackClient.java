@@ -0,0 +1,140 @@
+package bgu.spl.net.benchmarks;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+
+/**
+ * A minimal blocking TFTP client that downloads and uploads files without storing them.
+ */
+final class LoopbackClient implements Closeable {
+
+    private final Socket sock;
+    private final InputStream in;
+    private final OutputStream out;
+    private final TftpEncoderDecoder encdec = new TftpEncoderDecoder(); //Decodes all of the packet types
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+    LoopbackClient(String host, int port) throws IOException {
+        sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        in = sock.getInputStream();
+        out = sock.getOutputStream();
+        buffer.limit(0);
+    }
+
+    void login(String username) throws IOException {
+        send(Packets.logrq(username));
+        expectAck(0);
+    }
+
+    /**
+     * Downloads 'filename' with the given block size and window size (the options are negotiated
+     * only if they are not the defaults).
+     * @return the number of bytes downloaded
+     */
+    long download(String filename, int blockSize, int windowSize) throws IOException {
+        negotiate(blockSize, windowSize);
+        send(Packets.rrq(filename));
+
+        long downloadedBytes = 0;
+        int packetsSinceAck = 0;
+        while (true) {
+            byte[] packet = receive();
+            if (Packets.opcode(packet) != 3)
+                throw new IOException("Unexpected packet - opcode " + Packets.opcode(packet));
+
+            int dataSectionSize = packet.length - 6;
+            downloadedBytes += dataSectionSize;
+            boolean lastBlock = dataSectionSize < blockSize;
+            if (lastBlock || ++packetsSinceAck == windowSize) {
+                send(Packets.ack(Packets.blockNumber(packet)));
+                packetsSinceAck = 0;
+            }
+            if (lastBlock)
+                return downloadedBytes;
+        }
+    }
+
+    /**
+     * Uploads 'content' as 'filename' and deletes it afterwards.
+     */
+    void uploadAndDelete(String filename, byte[] content, int blockSize) throws IOException {
+        negotiate(blockSize, 1);
+        send(Packets.wrq(filename));
+        expectAck(0);
+
+        int blockNumber = 0;
+        int offset = 0;
+        int dataSectionSize;
+        do {
+            dataSectionSize = Math.min(blockSize, content.length - offset);
+            send(Packets.data(++blockNumber, content, offset, dataSectionSize));
+            expectAck(blockNumber & 0xffff);
+            offset += dataSectionSize;
+        } while (dataSectionSize == blockSize);
+        receive(); //BCAST of the uploaded file
+
+        send(Packets.delrq(filename));
+        expectAck(0);
+        receive(); //BCAST of the deleted file
+    }
+
+    void disconnect() throws IOException {
+        send(Packets.disc());
+        expectAck(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sock.close();
+    }
+
+    private void negotiate(int blockSize, int windowSize) throws IOException {
+        if (blockSize != 512) {
+            send(Packets.opt("blksize", Integer.toString(blockSize)));
+            expectOptionAck();
+        }
+        if (windowSize != 1) {
+            send(Packets.opt("windowsize", Integer.toString(windowSize)));
+            expectOptionAck();
+        }
+    }
+
+    private void expectAck(int blockNumber) throws IOException {
+        byte[] packet = receive();
+        if (Packets.opcode(packet) != 4 || Packets.blockNumber(packet) != blockNumber)
+            throw new IOException("Expected ACK " + blockNumber + " - got opcode " + Packets.opcode(packet));
+    }
+
+    private void expectOptionAck() throws IOException {
+        byte[] packet = receive();
+        if (Packets.opcode(packet) != 12)
+            throw new IOException("Expected OACK - got opcode " + Packets.opcode(packet));
+    }
+
+    private void send(byte[] packet) throws IOException {
+        out.write(packet);
+        out.flush();
+    }
+
+    private byte[] receive() throws IOException {
+        while (true) {
+            if (buffer.hasRemaining()) {
+                byte[] packet = encdec.decode(buffer);
+                if (packet != null)
+                    return packet;
+            }
+            int read = in.read(buffer.array());
+            if (read < 0)
+                throw new EOFException("The server closed the connection");
+            buffer.position(0).limit(read);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package bgu.spl.net.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.net.impl.tftp.DirectoryIndex;
+import bgu.spl.net.impl.tftp.FileCache;
+import bgu.spl.net.impl.tftp.TftpEncoderDecoder;
+import bgu.spl.net.impl.tftp.TftpProtocol;
+
+/**
+ * The cost of a single packet of a transfer in progress - a packet the server receives (decoded from its bytes
+ * by TftpEncoderDecoder) and processed by TftpProtocol, including the packet that is sent in response,
+ * against connections that do no I/O:
+ * - download - an ACK, and the next DATA packet of the file.
+ * - upload - a DATA packet, written to the file, and its ACK.
+ * Run with -prof gc - gc.alloc.rate.norm is the garbage the server creates for every packet. Once a transfer of
+ * 16MB is completed a new one is started, the cost of starting a transfer is spread over its packets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketPathBenchmark {
+
+    private static final int TRANSFER_SIZE = 16 << 20;
+    private static final String DOWNLOADED_FILENAME = "packet-path-benchmark-16MB.bin";
+    private static final String UPLOADED_FILENAME = "packet-path-benchmark-upload.bin";
+
+    @Param({ "512", "65464" })
+    public int blockSize;
+
+    @Param({ "0", "67108864" })
+    public long cacheBytes;
+
+    private FileCache fileCache;
+    private DirectoryIndex directoryIndex;
+    private StubConnections connections;
+    private TftpEncoderDecoder encdec;
+    private TftpProtocol protocol;
+    private byte[] blockSizeOption;
+    private byte[] rrq;
+    private byte[] wrq;
+    private byte[] delrq;
+    private ByteBuffer[] acks; //By block number
+    private ByteBuffer[] uploadedDataPackets; //The last one is empty - the size of the file is a multiple of the block size
+    private boolean downloading = false;
+    private int uploadedBlocks = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkFiles.discardServerOutput();
+        byte[] content = Files.readAllBytes(BenchmarkFiles.create(DOWNLOADED_FILENAME, TRANSFER_SIZE));
+        Files.deleteIfExists(BenchmarkFiles.DIRECTORY.resolve(UPLOADED_FILENAME));
+
+        fileCache = new FileCache(BenchmarkFiles.DIRECTORY, cacheBytes);
+        directoryIndex = new DirectoryIndex(BenchmarkFiles.DIRECTORY, fileCache::invalidate);
+        connections = new StubConnections();
+        encdec = new TftpEncoderDecoder();
+        protocol = new TftpProtocol(fileCache, directoryIndex);
+        protocol.start(1, connections);
+        blockSizeOption = Packets.opt("blksize", Integer.toString(blockSize));
+        rrq = Packets.rrq(DOWNLOADED_FILENAME);
+        wrq = Packets.wrq(UPLOADED_FILENAME);
+        delrq = Packets.delrq(UPLOADED_FILENAME);
+
+        acks = new ByteBuffer[1 << 16];
+        for (int i = 0; i < acks.length; i++)
+            acks[i] = ByteBuffer.wrap(Packets.ack(i));
+
+        uploadedDataPackets = new ByteBuffer[TRANSFER_SIZE / blockSize + 1];
+        for (int i = 0; i < uploadedDataPackets.length; i++) {
+            int offset = i * blockSize;
+            int length = Math.min(blockSize, content.length - offset);
+            uploadedDataPackets[i] = ByteBuffer.wrap(Packets.data(i + 1, content, offset, length));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        protocol.connectionClosed();
+        Files.deleteIfExists(BenchmarkFiles.DIRECTORY.resolve(UPLOADED_FILENAME));
+    }
+
+    @Benchmark
+    public int download() {
+        if (!downloading) {
+            protocol.process(blockSizeOption);
+            protocol.process(rrq);
+            downloading = true;
+            return connections.lastDataSectionSize;
+        }
+
+        downloading = connections.lastDataSectionSize == blockSize; //Otherwise this ACK completes the download
+        ByteBuffer ack = acks[Packets.blockNumber(connections.lastPacket)];
+        ack.clear();
+        protocol.process(encdec.decode(ack));
+        return connections.lastDataSectionSize;
+    }
+
+    @Benchmark
+    public int upload() {
+        if (uploadedBlocks == 0) {
+            protocol.process(blockSizeOption);
+            protocol.process(wrq);
+        }
+
+        ByteBuffer dataPacket = uploadedDataPackets[uploadedBlocks++];
+        dataPacket.clear();
+        protocol.process(encdec.decode(dataPacket));
+
+        if (uploadedBlocks == uploadedDataPackets.length) { //Completed - deleted, so that the next upload succeeds
+            protocol.process(delrq);
+            uploadedBlocks = 0;
+        }
+        return uploadedBlocks;
+    }
+}
@@ -0,0 +1,99 @@
+package bgu.spl.net.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the packets that clients send to the server.
+ */
+final class Packets {
+
+    private Packets() {
+    }
+
+    static byte[] request(int opcode, String argument) {
+        byte[] argumentInBytes = argument.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[argumentInBytes.length + 3];
+        packet[1] = (byte) opcode;
+        System.arraycopy(argumentInBytes, 0, packet, 2, argumentInBytes.length);
+        return packet;
+    }
+
+    static byte[] rrq(String filename) {
+        return request(1, filename);
+    }
+
+    static byte[] wrq(String filename) {
+        return request(2, filename);
+    }
+
+    static byte[] logrq(String username) {
+        return request(7, username);
+    }
+
+    static byte[] delrq(String filename) {
+        return request(8, filename);
+    }
+
+    static byte[] data(int blockNumber, byte[] data, int offset, int length) {
+        byte[] packet = new byte[length + 6];
+        packet[1] = 3;
+        packet[2] = (byte) (length >> 8);
+        packet[3] = (byte) length;
+        packet[4] = (byte) (blockNumber >> 8);
+        packet[5] = (byte) blockNumber;
+        System.arraycopy(data, offset, packet, 6, length);
+        return packet;
+    }
+
+    static byte[] ack(int blockNumber) {
+        return new byte[] { 0, 4, (byte) (blockNumber >> 8), (byte) blockNumber };
+    }
+
+    static byte[] error(int errorCode, String message) {
+        byte[] messageInBytes = message.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[messageInBytes.length + 5];
+        packet[1] = 5;
+        packet[3] = (byte) errorCode;
+        System.arraycopy(messageInBytes, 0, packet, 4, messageInBytes.length);
+        return packet;
+    }
+
+    static byte[] bcast(boolean added, String filename) {
+        byte[] filenameInBytes = filename.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[filenameInBytes.length + 4];
+        packet[1] = 9;
+        packet[2] = (byte) (added ? 1 : 0);
+        System.arraycopy(filenameInBytes, 0, packet, 3, filenameInBytes.length);
+        return packet;
+    }
+
+    static byte[] dirq() {
+        return new byte[] { 0, 6 };
+    }
+
+    static byte[] disc() {
+        return new byte[] { 0, 10 };
+    }
+
+    static byte[] opt(String name, String value) {
+        byte[] nameInBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] valueInBytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[nameInBytes.length + valueInBytes.length + 4];
+        packet[1] = 11;
+        System.arraycopy(nameInBytes, 0, packet, 2, nameInBytes.length);
+        System.arraycopy(valueInBytes, 0, packet, nameInBytes.length + 3, valueInBytes.length);
+        return packet;
+    }
+
+    static int opcode(byte[] packet) {
+        return (packet[0] & 0xff) << 8 | (packet[1] & 0xff);
+    }
+
+    /**
+     * @return the block number of a DATA/ACK packet
+     */
+    static int blockNumber(byte[] packet) {
+        int index = opcode(packet) == 3 ? 4 : 2;
+        return (packet[index] & 0xff) << 8 | (packet[index + 1] & 0xff);
+    }
+}
@@ -0,0 +1,121 @@
+package bgu.spl.net.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.net.impl.tftp.DirectoryIndex;
+import bgu.spl.net.impl.tftp.FileCache;
+import bgu.spl.net.impl.tftp.TftpProtocol;
+
+/**
+ * The cost of TftpProtocol.process for whole RRQ/WRQ/DIRQ transfers (with the default 512 bytes blocks),
+ * against connections that do no I/O. Every operation is a complete transfer - the request
+ * and all of the ACK/DATA packets that follow it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final String UPLOADED_FILENAME = "protocol-benchmark-upload.bin";
+
+    @Param({ "1KB", "1MB" })
+    public String fileSize;
+
+    @Param({ "0", "67108864" })
+    public long cacheBytes;
+
+    private FileCache fileCache;
+    private DirectoryIndex directoryIndex;
+    private StubConnections connections;
+    private byte[] rrq;
+    private byte[] wrq;
+    private byte[] delrq;
+    private byte[][] acks; //By block number
+    private byte[][] uploadedDataPackets;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkFiles.discardServerOutput();
+        String filename = "protocol-benchmark-" + fileSize + ".bin";
+        byte[] content = Files.readAllBytes(BenchmarkFiles.create(filename, BenchmarkFiles.parseSize(fileSize)));
+        Files.deleteIfExists(BenchmarkFiles.DIRECTORY.resolve(UPLOADED_FILENAME));
+
+        fileCache = new FileCache(BenchmarkFiles.DIRECTORY, cacheBytes);
+        directoryIndex = new DirectoryIndex(BenchmarkFiles.DIRECTORY, fileCache::invalidate);
+        connections = new StubConnections();
+        rrq = Packets.rrq(filename);
+        wrq = Packets.wrq(UPLOADED_FILENAME);
+        delrq = Packets.delrq(UPLOADED_FILENAME);
+
+        acks = new byte[1 << 16][];
+        for (int i = 0; i < acks.length; i++)
+            acks[i] = Packets.ack(i);
+
+        uploadedDataPackets = new byte[content.length / BLOCK_SIZE + 1][];
+        for (int i = 0; i < uploadedDataPackets.length; i++) {
+            int offset = i * BLOCK_SIZE;
+            uploadedDataPackets[i] = Packets.data(i + 1, content, offset, Math.min(BLOCK_SIZE, content.length - offset));
+        }
+    }
+
+    @Benchmark
+    public long rrq() {
+        TftpProtocol protocol = newProtocol();
+        protocol.process(rrq);
+        acknowledgeUntilLastBlock(protocol);
+        return connections.sentBytes;
+    }
+
+    /**
+     * Uploads the file, followed by a DELRQ of the uploaded file (so that the next upload succeeds).
+     */
+    @Benchmark
+    public long wrq() {
+        TftpProtocol protocol = newProtocol();
+        protocol.process(wrq);
+        for (byte[] dataPacket : uploadedDataPackets)
+            protocol.process(dataPacket);
+        protocol.process(delrq);
+        return connections.sentBytes;
+    }
+
+    @Benchmark
+    public long dirq() {
+        TftpProtocol protocol = newProtocol();
+        protocol.process(Packets.dirq());
+        acknowledgeUntilLastBlock(protocol);
+        return connections.sentBytes;
+    }
+
+    private TftpProtocol newProtocol() {
+        TftpProtocol protocol = new TftpProtocol(fileCache, directoryIndex);
+        protocol.start(1, connections);
+        return protocol;
+    }
+
+    private void acknowledgeUntilLastBlock(TftpProtocol protocol) {
+        boolean lastBlock;
+        do {
+            lastBlock = connections.lastDataSectionSize < BLOCK_SIZE;
+            protocol.process(acks[Packets.blockNumber(connections.lastPacket)]);
+        } while (!lastBlock);
+    }
+}
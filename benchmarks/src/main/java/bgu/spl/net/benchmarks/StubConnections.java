@@ -0,0 +1,71 @@
+package bgu.spl.net.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.Connections;
+
+/**
+ * Connections of a single, logged in client that only remember the last packet sent to it -
+ * the cost of the protocol is measured without any I/O.
+ */
+final class StubConnections implements Connections<byte[]> {
+
+    byte[] lastPacket; //The last packet, or the header of the last DATA packet
+    int lastDataSectionSize = -1; //-1 if the last packet was not a DATA packet
+    long sentBytes = 0;
+
+    @Override
+    public boolean connect(int connectionId, ConnectionHandler<byte[]> handler) {
+        return true;
+    }
+
+    @Override
+    public boolean send(int connectionId, byte[] msg) {
+        lastPacket = msg;
+        lastDataSectionSize = Packets.opcode(msg) == 3 ? msg.length - 6 : -1;
+        sentBytes += msg.length;
+        return true;
+    }
+
+    @Override
+    public boolean sendFileRegion(int connectionId, byte[] header, FileChannel file, long position, long count) {
+        lastPacket = header;
+        lastDataSectionSize = (int) count;
+        sentBytes += header.length + count;
+        return true;
+    }
+
+    @Override
+    public boolean send(int connectionId, byte[] header, ByteBuffer data) {
+        lastPacket = header;
+        lastDataSectionSize = data.remaining();
+        sentBytes += header.length + data.remaining();
+        return true;
+    }
+
+    @Override
+    public void disconnect(int connectionId) {
+    }
+
+    @Override
+    public int getNewConnectionId() {
+        return 1;
+    }
+
+    @Override
+    public boolean login(int connectionId, String username) {
+        return true;
+    }
+
+    @Override
+    public boolean isLoggedIn(int connectionId) {
+        return true;
+    }
+
+    @Override
+    public void sendAll(byte[] msg) {
+        sentBytes += msg.length;
+    }
+}
@@ -13,5 +13,10 @@ public interface MessagingProtocol<T> {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * called once the connection was closed without the protocol terminating it
+     */
+    default void connectionClosed() {}
  
 }
\ No newline at end of file
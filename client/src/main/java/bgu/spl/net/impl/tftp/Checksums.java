@@ -0,0 +1,109 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Checksum;
+
+/**
+ * The checksums of a checksummed transfer - the CRC32C of every DATA block, and the SHA-256 digest of the whole file.
+ * The CRC32C of the JDK (Java 9 and above) is used when the client runs on it, a table based one otherwise.
+ */
+public final class Checksums {
+    private static final int CRC32C_POLYNOMIAL = 0x82F63B78; //Castagnoli, reversed
+    private static final int[] CRC32C_TABLE = new int[256];
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ CRC32C_POLYNOMIAL : crc >>> 1;
+            CRC32C_TABLE[i] = crc;
+        }
+    }
+
+    private Checksums() {
+    }
+
+    /**
+     * @return a new CRC32C checksum
+     */
+    public static Checksum newCrc32c() {
+        try {
+            return (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return new TableCrc32c(); //Java 8
+        }
+    }
+
+    /**
+     * @return a new SHA-256 digest
+     */
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e); //Every Java platform supports it
+        }
+    }
+
+    /**
+     * Adds the first 'length' bytes of 'file' to 'digest' - the part of a resumed transfer that is not sent again.
+     */
+    public static void hashFile(MessageDigest digest, FileChannel file, long length) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        long position = 0;
+        while (position < length) {
+            ((Buffer) chunk).clear().limit((int) Math.min(CHUNK_SIZE, length - position)); //Through Buffer - Java 8 links to it
+            int bytesRead = file.read(chunk, position);
+            if (bytesRead < 0)
+                throw new IOException("the file ended before byte " + length);
+            position += bytesRead;
+            ((Buffer) chunk).flip();
+            digest.update(chunk);
+        }
+    }
+
+    /**
+     * @return 'bytes' in lowercase hexadecimal digits
+     */
+    public static String toHex(byte[] bytes) {
+        char[] digits = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            digits[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            digits[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(digits);
+    }
+
+    //------------------ HELPER FUNCTION ------------------//
+    private static final class TableCrc32c implements Checksum {
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ CRC32C_TABLE[(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++)
+                crc = (crc >>> 8) ^ CRC32C_TABLE[(crc ^ b[i]) & 0xFF];
+        }
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
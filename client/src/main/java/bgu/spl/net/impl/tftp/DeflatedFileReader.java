@@ -0,0 +1,62 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates the file of a compressed upload while it is uploaded - the file is read in chunks from its
+ * current position, and deflated into the DATA packets one block at a time.
+ */
+public class DeflatedFileReader {
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final FileChannel file;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private final ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+    private boolean endOfFile = false;
+    private final MessageDigest digest; //Updated with the bytes of the file that are read, null if they are not hashed
+
+    /**
+     * @param digest updated with the (uncompressed) bytes of the file as they are read, null to not hash them
+     */
+    public DeflatedFileReader(FileChannel file, MessageDigest digest) {
+        this.file = file;
+        this.digest = digest;
+    }
+
+    /**
+     * Fills 'length' bytes of 'destination' from 'offset' with the deflated data that follows the previous read.
+     * @return the number of bytes written - less than 'length' only at the end of the stream
+     */
+    public int read(byte[] destination, int offset, int length) throws IOException {
+        int written = 0;
+        while (written < length && !deflater.finished()) {
+            if (deflater.needsInput() && !endOfFile) { //The deflater is done with the previous chunk - it may be overwritten
+                ((Buffer) chunkBuffer).clear(); //Through Buffer - ByteBuffer overrides it only from Java 9 on
+                int bytesRead = file.read(chunkBuffer);
+                if (bytesRead < 0) {
+                    endOfFile = true;
+                    deflater.finish();
+                } else {
+                    if (digest != null)
+                        digest.update(chunk, 0, bytesRead);
+                    deflater.setInput(chunk, 0, bytesRead);
+                }
+            }
+            written += deflater.deflate(destination, offset + written, length - written);
+        }
+        return written;
+    }
+
+    /**
+     * Releases the (native) memory of the deflater - the file is closed by its owner.
+     */
+    public void close() {
+        deflater.end();
+    }
+}
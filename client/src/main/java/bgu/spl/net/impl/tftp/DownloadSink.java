@@ -0,0 +1,234 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Writes the DATA packets of a download into its file on a thread of its own, so that the thread
+ * that reads from the server can acknowledge a block as soon as it is decoded.
+ * The blocks are collected in a large buffer (smaller for a file the server said is small) and written to the file in
+ * large chunks - the file grows as it is written, it is never extended ahead of the data.
+ * The file is written as '<filename>.part', and renamed once the download is completed - the part of a download
+ * that was interrupted is kept, and the download is resumed from its end by the next RRQ of the file.
+ * The blocks of a compressed download (deflate) are inflated by the writer thread, straight into the buffer.
+ * The file of a checksummed download is hashed (SHA-256) as it is written - it is kept only if its digest is the one
+ * the server sent, the part of a resumed download is hashed before the new data.
+ */
+public class DownloadSink {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MIN_BUFFER_SIZE = 1 << 16; //Small files get a small buffer - a batch downloads many of them
+    private static final int QUEUE_CAPACITY = 64; //DATA packets waiting to be written - the reader waits when it is full
+    private static final byte[] END_OF_FILE = new byte[0];
+    private static final byte[] ABORTED = new byte[0];
+    private static final byte[] INTERRUPTED = new byte[0];
+    public static final String PART_SUFFIX = ".part";
+
+    private final String filename;
+    private final Path path;
+    private final FileChannel channel;
+    private final BlockingQueue<byte[]> packets = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Inflater inflater; //null if the download is not compressed
+    private final ByteBuffer buffer;
+    private final int dataSectionBegin; //In the DATA packets - after the CRC32C of a checksummed download
+    private final MessageDigest digest; //Of the data written to the file, null if the download is not checksummed
+    private volatile String expectedDigest; //The digest the server sent (hex), set before the end of the file is queued
+    private long position; //Bytes written to the file - its length is always the number of bytes received
+    private IOException failure = null;
+
+    /**
+     * Opens the part file of 'filename' and starts its writer thread. The data is written from 'offset' on,
+     * whatever the part file holds after 'offset' is dropped.
+     * @param deflated - the DATA blocks are a deflate stream of the data (from 'offset')
+     * @param sizeHint - the number of bytes the download should write, -1 if it is not known. It only sizes the
+     *                 buffer - the file is not extended to it (it grows as it is written), nor checked against it
+     * @param checksummed - the DATA packets carry the CRC32C of their data section (checked by the reader), and the
+     *                    file is checked against the digest the server sent
+     */
+    public DownloadSink(String filename, long offset, boolean deflated, long sizeHint, boolean checksummed) throws IOException {
+        this.filename = filename;
+        inflater = deflated ? new Inflater() : null;
+        dataSectionBegin = checksummed ? 10 : 6;
+        digest = checksummed ? Checksums.newSha256() : null;
+        int bufferSize = sizeHint < 0 ? BUFFER_SIZE : (int) Math.max(MIN_BUFFER_SIZE, Math.min(BUFFER_SIZE, sizeHint));
+        buffer = deflated ? ByteBuffer.allocate(bufferSize) : ByteBuffer.allocateDirect(bufferSize); //Inflated into its array
+        path = partOf(filename);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        try {
+            channel.truncate(offset);
+            if (digest != null)
+                Checksums.hashFile(digest, channel, offset); //The digest is of the whole file
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        position = offset;
+
+        Thread writer = new Thread(this::writeLoop, "download-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the part file of the download of 'filename'
+     */
+    public static Path partOf(String filename) {
+        return Paths.get(filename + PART_SUFFIX);
+    }
+
+    /**
+     * @return the number of bytes an interrupted download of 'filename' has received, 0 if there is none
+     */
+    public static long partSize(String filename) {
+        try {
+            return Files.size(partOf(filename));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Hands a DATA packet (header included) to the writer thread.
+     */
+    public void write(byte[] dataPacket) {
+        enqueue(dataPacket);
+    }
+
+    /**
+     * The last DATA packet was handed to the writer - the file is completed and closed once all of it is written.
+     * @param expectedDigest the digest of the file that the server sent (hex), null if it sent none
+     */
+    public void finish(String expectedDigest) {
+        this.expectedDigest = expectedDigest;
+        enqueue(END_OF_FILE);
+    }
+
+    /**
+     * The download was stopped - the file is deleted once the packets handed to the writer are discarded.
+     */
+    public void abort() {
+        enqueue(ABORTED);
+    }
+
+    /**
+     * The connection to the server was lost - the data handed to the writer is written and the part file is kept.
+     */
+    public void interrupt() {
+        enqueue(INTERRUPTED);
+    }
+
+    private void enqueue(byte[] packet) {
+        try {
+            packets.put(packet);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            byte[] packet;
+            while ((packet = packets.take()) != END_OF_FILE && packet != ABORTED && packet != INTERRUPTED) {
+                if (failure == null) { //After a failure the rest of the packets are discarded
+                    try {
+                        int dataSize = packet.length - dataSectionBegin;
+                        if (inflater != null)
+                            inflate(packet, dataSize);
+                        else {
+                            if (dataSize > buffer.remaining())
+                                writeBuffer();
+                            buffer.put(packet, dataSectionBegin, dataSize);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+            }
+            if (packet == ABORTED)
+                failure = new IOException("the download was stopped");
+            complete(packet == INTERRUPTED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void complete(boolean interrupted) {
+        try {
+            if (failure == null && !interrupted && inflater != null && !inflater.finished())
+                failure = new IOException("the compressed data ended in the middle of its stream");
+            if (failure == null)
+                writeBuffer();
+            if (failure == null && !interrupted && digest != null)
+                checkDigest();
+            if (inflater != null)
+                inflater.end();
+            channel.close();
+            if (failure == null && !interrupted)
+                Files.move(path, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (failure == null)
+                failure = e;
+        }
+
+        if (failure == null && interrupted)
+            System.out.println("Download of " + filename + " was interrupted after " + position
+                    + " bytes - RRQ " + filename + " again to resume it");
+        else if (failure == null)
+            System.out.println("File " + filename + " download completed");
+        else {
+            System.out.println("Error writing the downloaded file " + filename + " (" + failure.getMessage() + ")");
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Fails the download if the digest of the written file is not the one the server sent
+    private void checkDigest() {
+        String fileDigest = Checksums.toHex(digest.digest());
+        if (expectedDigest == null)
+            failure = new IOException("the server did not send the digest of the file");
+        else if (!fileDigest.equalsIgnoreCase(expectedDigest))
+            failure = new IOException("checksum mismatch - the SHA-256 of the file is " + fileDigest
+                    + ", the server sent " + expectedDigest);
+    }
+
+    // Inflates the data section of a DATA packet into the buffer, writing the buffer whenever it is full
+    private void inflate(byte[] packet, int dataSize) throws IOException {
+        inflater.setInput(packet, dataSectionBegin, dataSize);
+        try {
+            while (!inflater.finished()) {
+                if (!buffer.hasRemaining())
+                    writeBuffer();
+                int inflated = inflater.inflate(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                ((Buffer) buffer).position(buffer.position() + inflated);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break; //The rest of the data is in the next packets
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed data (" + e.getMessage() + ")");
+        }
+    }
+
+    //The Buffer methods are called through Buffer - ByteBuffer overrides them only from Java 9 on
+    private void writeBuffer() throws IOException {
+        ((Buffer) buffer).flip();
+        if (digest != null)
+            digest.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        ((Buffer) buffer).clear();
+    }
+}
@@ -0,0 +1,79 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A histogram of latencies in microseconds that many threads record into concurrently.
+ * Values below 128us are counted exactly, larger values in log-linear buckets of 128 buckets per
+ * power of 2 - a percentile is reported with an error below 1%.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; //Values are capped at 2^40 us (about 12 days)
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 2));
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), (1L << MAX_EXPONENT) - 1);
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulate(value);
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long recorded = count.get();
+        return recorded == 0 ? 0 : (double) sum.get() / recorded;
+    }
+
+    /**
+     * @param percentile - between 0 and 100
+     * @return the highest value of the bucket that holds the given percentile (0 if nothing was recorded)
+     */
+    public long percentile(double percentile) {
+        long recorded = count.get();
+        if (recorded == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    //------------------ HELPER FUNCTION ------------------//
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value); //At least SUB_BUCKET_BITS
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS * (shift + 1) + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowestValue = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowestValue + (1L << shift) - 1;
+    }
+}
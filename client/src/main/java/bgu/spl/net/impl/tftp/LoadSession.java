@@ -0,0 +1,308 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import bgu.spl.net.impl.tftp.TftpMessagingProtocol.Opcode;
+
+/**
+ * A connection of the load generator (and of the parallel downloader) - one logged in user that runs one operation
+ * at a time. Packets are decoded by the client's TftpEncoderDecoder. Downloaded files are not stored unless a range
+ * of them is downloaded into a file, and broadcasts (BCAST) are skipped.
+ * The operations return the number of bytes transferred, or -1 if the server answered with an ERROR,
+ * and throw an IOException if the connection failed.
+ */
+public class LoadSession implements Closeable {
+    private static final int DEFAULT_BLOCK_SIZE = 512;
+    private static final String BLOCK_SIZE_OPTION = "blksize";
+    private static final String WINDOW_SIZE_OPTION = "windowsize";
+    private static final String TRANSFER_SIZE_OPTION = "tsize";
+    private static final String OFFSET_OPTION = "offset";
+    private static final String LENGTH_OPTION = "length";
+
+    private final Socket sock;
+    private final InputStream in;
+    private final OutputStream out;
+    private final TftpEncoderDecoder encdec = new TftpEncoderDecoder();
+    private final int requestedBlockSize;
+    private final int requestedWindowSize;
+    private final byte[] header = new byte[6]; //Of the DATA packets that are sent
+    private int blockSize; //Negotiated (OACK) for the current transfer
+    private int windowSize;
+    private long transferSize; //Of the file of the current download, -1 if the server did not send it (OACK)
+
+    public LoadSession(String host, int port, int requestedBlockSize, int requestedWindowSize) throws IOException {
+        this.requestedBlockSize = requestedBlockSize;
+        this.requestedWindowSize = requestedWindowSize;
+        sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        in = new BufferedInputStream(sock.getInputStream(), 1 << 16);
+        out = new BufferedOutputStream(sock.getOutputStream(), 1 << 17);
+    }
+
+    /**
+     * @return true if the user was logged in
+     */
+    public boolean login(String username) throws IOException {
+        send(request(Opcode.LOGRQ, username));
+        return expectAck(0);
+    }
+
+    /**
+     * A read that waits longer than 'millis' for the server throws a SocketTimeoutException - 0 waits forever.
+     */
+    public void setReadTimeout(int millis) throws IOException {
+        sock.setSoTimeout(millis);
+    }
+
+    /**
+     * Downloads 'filename' without storing it.
+     */
+    public long download(String filename) throws IOException {
+        sendOptions(true);
+        send(request(Opcode.RRQ, filename));
+        return receiveFile(null, 0);
+    }
+
+    /**
+     * @return the size of 'filename' (an empty range of it is downloaded with its tsize), -1 if the server
+     * answered with an ERROR
+     */
+    public long fileSize(String filename) throws IOException {
+        sendOptions(true);
+        out.write(option(TRANSFER_SIZE_OPTION, 0));
+        out.write(option(LENGTH_OPTION, 0));
+        send(request(Opcode.RRQ, filename));
+        return receiveFile(null, 0) < 0 ? -1 : transferSize;
+    }
+
+    /**
+     * Downloads 'length' bytes of 'filename' from 'offset' into the same positions of 'target'.
+     * @return the number of bytes downloaded - less than 'length' if the file ends before the range
+     */
+    public long downloadRange(String filename, long offset, long length, FileChannel target) throws IOException {
+        sendOptions(true);
+        out.write(option(OFFSET_OPTION, offset));
+        out.write(option(LENGTH_OPTION, length));
+        send(request(Opcode.RRQ, filename));
+        return receiveFile(target, offset);
+    }
+
+    /**
+     * Uploads 'content' as 'filename'.
+     */
+    public long upload(String filename, byte[] content) throws IOException {
+        sendOptions(false);
+        send(request(Opcode.WRQ, filename));
+        if (!expectAck(0))
+            return -1;
+
+        int offset = 0;
+        int dataSize;
+        short block = 0;
+        do {
+            dataSize = Math.min(blockSize, content.length - offset);
+            block++;
+            header[0] = Opcode.DATA.toBytes()[0];
+            header[1] = Opcode.DATA.toBytes()[1];
+            header[2] = (byte) (dataSize >> 8);
+            header[3] = (byte) dataSize;
+            header[4] = (byte) (block >> 8);
+            header[5] = (byte) block;
+            out.write(header);
+            out.write(content, offset, dataSize);
+            out.flush();
+            if (!expectAck(block & 0xFFFF))
+                return -1;
+            offset += dataSize;
+        } while (dataSize == blockSize);
+
+        return content.length;
+    }
+
+    /**
+     * @return the names of the files in the server, or null if the server answered with an ERROR
+     */
+    public List<String> listDirectory() throws IOException {
+        ByteArrayOutputStream listing = new ByteArrayOutputStream();
+        if (directoryListing(listing) < 0)
+            return null;
+
+        List<String> filenames = new ArrayList<>();
+        byte[] names = listing.toByteArray();
+        int start = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == 0) {
+                filenames.add(new String(names, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        return filenames;
+    }
+
+    /**
+     * Receives the directory listing without parsing it.
+     */
+    public long directoryListing() throws IOException {
+        return directoryListing(null);
+    }
+
+    public long delete(String filename) throws IOException {
+        send(request(Opcode.DELRQ, filename));
+        return expectAck(0) ? 0 : -1;
+    }
+
+    public void disconnect() throws IOException {
+        send(Opcode.DISC.toBytes());
+        expectAck(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sock.close();
+    }
+
+    //------------------ HELPER FUNCTION ------------------//
+    // Receives the DATA packets of a download - written to 'target' from 'position' unless it is null
+    private long receiveFile(FileChannel target, long position) throws IOException {
+        long downloadedBytes = 0;
+        int packetsSinceAck = 0;
+        while (true) {
+            byte[] packet = receive();
+            Opcode opcode = Opcode.extract(packet);
+            if (opcode == Opcode.OACK) {
+                handleOptionAck(packet);
+                continue;
+            }
+            if (opcode != Opcode.DATA)
+                return -1;
+
+            int dataSize = packet.length - 6;
+            if (target != null) {
+                ByteBuffer data = ByteBuffer.wrap(packet, 6, dataSize);
+                long writePosition = position + downloadedBytes;
+                while (data.hasRemaining())
+                    writePosition += target.write(data, writePosition);
+            }
+            downloadedBytes += dataSize;
+            boolean lastPacket = dataSize < blockSize;
+            if (lastPacket || ++packetsSinceAck == windowSize) { //The server waits only at the end of every window
+                send(ack(packet[4], packet[5]));
+                packetsSinceAck = 0;
+            }
+            if (lastPacket)
+                return downloadedBytes;
+        }
+    }
+
+    private long directoryListing(ByteArrayOutputStream listing) throws IOException {
+        send(Opcode.DIRQ.toBytes());
+
+        long listingBytes = 0;
+        while (true) {
+            byte[] packet = receive();
+            if (Opcode.extract(packet) != Opcode.DATA)
+                return -1;
+
+            int dataSize = packet.length - 6;
+            listingBytes += dataSize;
+            if (listing != null)
+                listing.write(packet, 6, dataSize);
+            send(ack(packet[4], packet[5]));
+            if (dataSize < DEFAULT_BLOCK_SIZE) //Directory listings always use the default block size
+                return listingBytes;
+        }
+    }
+
+    // The options are sent right before the request - their OACKs arrive before its response
+    private void sendOptions(boolean download) throws IOException {
+        blockSize = DEFAULT_BLOCK_SIZE;
+        windowSize = 1;
+        transferSize = -1;
+        if (requestedBlockSize != DEFAULT_BLOCK_SIZE)
+            out.write(option(BLOCK_SIZE_OPTION, requestedBlockSize));
+        if (download && requestedWindowSize != 1)
+            out.write(option(WINDOW_SIZE_OPTION, requestedWindowSize));
+    }
+
+    private void handleOptionAck(byte[] packet) {
+        int nameEnd = 2;
+        while (packet[nameEnd] != 0)
+            nameEnd++;
+
+        String name = new String(packet, 2, nameEnd - 2, StandardCharsets.UTF_8);
+        long value = Long.parseLong(new String(packet, nameEnd + 1, packet.length - nameEnd - 2, StandardCharsets.UTF_8));
+        if (name.equals(BLOCK_SIZE_OPTION))
+            blockSize = (int) value;
+        else if (name.equals(WINDOW_SIZE_OPTION))
+            windowSize = (int) value;
+        else if (name.equals(TRANSFER_SIZE_OPTION))
+            transferSize = value;
+    }
+
+    // Waits for the ACK of 'block' - OACKs of the current request are applied on the way
+    private boolean expectAck(int block) throws IOException {
+        while (true) {
+            byte[] packet = receive();
+            Opcode opcode = Opcode.extract(packet);
+            if (opcode == Opcode.OACK)
+                handleOptionAck(packet);
+            else
+                return opcode == Opcode.ACK && ((packet[2] & 0xFF) << 8 | (packet[3] & 0xFF)) == block;
+        }
+    }
+
+    private void send(byte[] packet) throws IOException {
+        out.write(packet);
+        out.flush();
+    }
+
+    // The next packet from the server that is not a broadcast
+    private byte[] receive() throws IOException {
+        while (true) {
+            int nextByte = in.read();
+            if (nextByte < 0)
+                throw new EOFException("The server closed the connection");
+
+            byte[] packet = encdec.decodeNextByte((byte) nextByte);
+            if (packet != null && Opcode.extract(packet) != Opcode.BCAST)
+                return packet;
+        }
+    }
+
+    private static byte[] request(Opcode opcode, String argument) {
+        byte[] encodedArgument = argument.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[3 + encodedArgument.length];
+        packet[0] = opcode.toBytes()[0];
+        packet[1] = opcode.toBytes()[1];
+        System.arraycopy(encodedArgument, 0, packet, 2, encodedArgument.length);
+        return packet;
+    }
+
+    private static byte[] option(String name, long value) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = Long.toString(value).getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[4 + nameBytes.length + valueBytes.length];
+        packet[0] = Opcode.OPT.toBytes()[0];
+        packet[1] = Opcode.OPT.toBytes()[1];
+        System.arraycopy(nameBytes, 0, packet, 2, nameBytes.length);
+        System.arraycopy(valueBytes, 0, packet, 3 + nameBytes.length, valueBytes.length);
+        return packet;
+    }
+
+    private static byte[] ack(byte blockHigh, byte blockLow) {
+        return new byte[] { Opcode.ACK.toBytes()[0], Opcode.ACK.toBytes()[1], blockHigh, blockLow };
+    }
+}
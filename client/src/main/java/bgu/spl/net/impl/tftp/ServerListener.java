@@ -49,5 +49,8 @@ public class ServerListener implements Runnable {
         } catch (IOException ignored) {
             // Handle exception
         }
+
+        if (!protocol.shouldTerminate()) //The server closed the connection (or it was lost)
+            protocol.connectionClosed();
     }
 }
\ No newline at end of file
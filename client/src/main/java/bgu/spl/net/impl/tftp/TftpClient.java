@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.net.Socket;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
-import bgu.spl.net.api.MessagingProtocol;
 
 public class TftpClient {
     public static void main(String[] args) {
@@ -29,7 +28,7 @@ public class TftpClient {
             sock = new Socket(host, port);
 
             // Create an instance of the TFTP messaging protocol
-            MessagingProtocol<byte[]> protocol = new TftpMessagingProtocol();
+            TftpMessagingProtocol protocol = new TftpMessagingProtocol();
 
             // Create an instance of the TFTP message encoder/decoder
             MessageEncoderDecoder<byte[]> encdec = new TftpEncoderDecoder();
@@ -9,15 +9,22 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
     private List<Byte> bytesList;
     //OpCode for message identification
     private short opCode;
-    private int dataBytesLeft;
+    private byte[] dataPacket; //DATA packets are collected directly in an array of the packet size
+    private int dataPacketLength;
+    private int zerosReceived; //Number of strings of the current message that were terminated
 
     public TftpEncoderDecoder() {
         this.bytesList = new LinkedList<>();
-        dataBytesLeft = 0;
+        dataPacket = null;
     }
 
     @Override
     public byte[] decodeNextByte(byte nextByte) {
+        if (dataPacket != null) { //Size of the DATA packet is known
+            dataPacket[dataPacketLength++] = nextByte;
+            return dataPacketLength == dataPacket.length ? popDataPacket() : null;
+        }
+
         //if the bytes list is empty, add the next byte
         bytesList.add(nextByte);
 
@@ -35,15 +42,13 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
         switch (opCode) {
             case (3): //data message
                 if (bytesList.size() == 4) {
-                    byte[] sizeBytes = new byte[] { bytesList.get(2), bytesList.get(3) };
-                    int packetDataSize = (short) (((short) sizeBytes[0]) << 8 | (short) (sizeBytes[1] & 0xFF));
-                    dataBytesLeft = packetDataSize; //Saving data section size
+                    //Unsigned - a negotiated block size may be up to 65464 bytes
+                    int packetDataSize = (bytesList.get(2) & 0xFF) << 8 | (bytesList.get(3) & 0xFF);
+                    dataPacket = new byte[6 + packetDataSize];
+                    for (Byte b : bytesList)
+                        dataPacket[dataPacketLength++] = b;
+                    bytesList.clear();
                 }
-                else if(bytesList.size() > 6) { //Reading the data section
-                    dataBytesLeft--;
-                    if(dataBytesLeft == 0)
-                        return bytesToArray();
-                } 
                 return null;
 
             case (4): //acknowledgement message
@@ -68,6 +73,17 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
                         return null; //incomplete message, continue collecting bytes
                 }
                 break;
+            case (12): //option acknowledgement - option name and value
+            case (15): //digest of the file - algorithm and digest
+                if (bytesList.size() > 2 && nextByte == 0 && ++zerosReceived == 2)
+                    return bytesToArray();
+                return null;
+
+            case (14): //file of a batch download - error code (might hold zero-bytes), filename and size
+                if (bytesList.size() > 4 && nextByte == 0 && ++zerosReceived == 2)
+                    return bytesToArray();
+                return null;
+
             default: System.out.println("Some error has occured when encoding message from server"); break;
         }
 
@@ -93,6 +109,16 @@ public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
 
         bytesList.clear(); //clear the bytes list for the next message
         this.opCode = -1; //reset OpCode
+        this.zerosReceived = 0;
+        return result;
+    }
+
+    private byte[] popDataPacket() {
+        byte[] result = dataPacket;
+
+        dataPacket = null;
+        dataPacketLength = 0;
+        this.opCode = -1; //reset OpCode
         return result;
     }
 }
\ No newline at end of file
@@ -2,22 +2,24 @@ package bgu.spl.net.impl.tftp;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
-import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.impl.tftp.TftpMessagingProtocol.TftpError;
 
 public class TftpKeyboardHandler implements Runnable {
     private BufferedOutputStream out;
     private BufferedReader in;
-    private MessagingProtocol<byte[]> protocol;
+    private TftpMessagingProtocol protocol;
     public Object discLock; // used to lock the thread when the user wants to disconnect
 
-    public TftpKeyboardHandler(Socket socket, MessagingProtocol<byte[]> protocol) {
+    public TftpKeyboardHandler(Socket socket, TftpMessagingProtocol protocol) {
         try {
             this.out = new BufferedOutputStream(socket.getOutputStream());
             this.in = new BufferedReader(new InputStreamReader(System.in));
@@ -44,6 +46,8 @@ public class TftpKeyboardHandler implements Runnable {
                     if (encodedCommand != null) {
                         protocol.process(encodedCommand); // response should be null, just inform the thread that we
                                                           // sent this message
+                        for (byte[] option : protocol.requestOptions(encodedCommand))
+                            send(option);
                         send(encodedCommand);
 
                         // if the user requested to disconnect, wait until the server send an answer
@@ -132,6 +136,13 @@ public class TftpKeyboardHandler implements Runnable {
                 else
                     encodedCommand = encapsulate(encodedArg, code);
                 break;
+            case BRRQ:
+                List<String> filenames = splitArguments(arg);
+                if (filenames.isEmpty() || filenames.size() > 0xFFFF)
+                    System.out.println("Invalid filenames");
+                else
+                    encodedCommand = encapsulateBatch(filenames, code);
+                break;
             case DIRQ:
             case DISC:
                 encodedCommand = code.toBytes();
@@ -163,6 +174,59 @@ public class TftpKeyboardHandler implements Runnable {
         return encodedMessage;
     }
 
+    /**
+     * Split the arguments of a command on spaces - an argument in double quotes may hold spaces.
+     * 
+     * @param arguments
+     * @return the arguments, without the quotes.
+     */
+    private List<String> splitArguments(String arguments) {
+        List<String> result = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+
+        for (char c : arguments.toCharArray()) {
+            if (c == '"')
+                quoted = !quoted;
+            else if (c == ' ' && !quoted) {
+                if (current.length() > 0)
+                    result.add(current.toString());
+                current.setLength(0);
+            } else
+                current.append(c);
+        }
+        if (current.length() > 0)
+            result.add(current.toString());
+
+        return result;
+    }
+
+    /**
+     * Create an encoded batch request - the number of filenames, then every filename terminated by a zero byte.
+     * 
+     * @param filenames
+     * @param code
+     * @return encoded command packet, null if a filename is invalid.
+     */
+    private byte[] encapsulateBatch(List<String> filenames, TftpMessagingProtocol.Opcode code) {
+        ByteArrayOutputStream encodedMessage = new ByteArrayOutputStream();
+
+        encodedMessage.write(code.toBytes(), 0, 2);
+        encodedMessage.write(filenames.size() >> 8);
+        encodedMessage.write(filenames.size() & 0xFF);
+        for (String filename : filenames) {
+            byte[] encodedFilename = filename.getBytes(StandardCharsets.UTF_8);
+            if (!argumentIsValid(encodedFilename)) {
+                System.out.println("Invalid filename " + filename);
+                return null;
+            }
+            encodedMessage.write(encodedFilename, 0, encodedFilename.length);
+            encodedMessage.write(0);
+        }
+
+        return encodedMessage.toByteArray();
+    }
+
     /**
      * Send a message to the server.
      * 
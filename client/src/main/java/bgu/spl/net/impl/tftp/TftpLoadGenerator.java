@@ -0,0 +1,338 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless client that simulates many concurrent users, for capacity planning of the server:
+ * it logs in N sessions and runs a mix of RRQ/WRQ/DIRQ/DELRQ operations, each type at a target rate.
+ * <p>
+ * The operations are scheduled at fixed intervals (open loop) and run by the first idle session.
+ * The latency of an operation is measured from the time it was scheduled, so when the sessions
+ * (or the server) cannot keep up with the target rates, the time that operations wait is part of their latency.
+ * <p>
+ * Usage: TftpLoadGenerator &lt;host&gt; &lt;port&gt; [--sessions=100] [--duration=30] [--rate=RRQ:50,WRQ:10,DIRQ:10,DELRQ:10]
+ * [--files=name,...] [--upload-size=65536] [--blksize=512] [--windowsize=1] [--report-interval=5]
+ */
+public class TftpLoadGenerator {
+
+    public enum Operation { RRQ, WRQ, DIRQ, DELRQ }
+
+    private static final long SESSION_THREAD_STACK_SIZE = 256 << 10; //Thousands of sessions - each one on a thread
+
+    //A scheduled operation
+    private static final class Task {
+        final Operation operation;
+        final long scheduledNanos;
+
+        Task(Operation operation, long scheduledNanos) {
+            this.operation = operation;
+            this.scheduledNanos = scheduledNanos;
+        }
+    }
+
+    //The results of one type of operation
+    private static final class Results {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong(); //DELRQ with no uploaded file to delete
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    private final String host;
+    private final int port;
+    private final int sessions;
+    private final int durationSeconds;
+    private final Map<Operation, Double> rates = new EnumMap<>(Operation.class); //Operations per second
+    private List<String> filesToRead;
+    private final byte[] uploadContent;
+    private final int blockSize;
+    private final int windowSize;
+    private final int reportIntervalSeconds;
+
+    private final String runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+    private final Map<Operation, Results> results = new EnumMap<>(Operation.class);
+    private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<String> uploadedFiles = new ConcurrentLinkedQueue<>(); //Deleted by DELRQ
+    private final AtomicInteger uploadCounter = new AtomicInteger();
+    private final AtomicInteger failedSessions = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            System.out.println("usage: TftpLoadGenerator <host> <port> [--sessions=100] [--duration=30]"
+                    + " [--rate=RRQ:50,WRQ:10,DIRQ:10,DELRQ:10] [--files=name,...] [--upload-size=65536]"
+                    + " [--blksize=512] [--windowsize=1] [--report-interval=5]");
+            System.exit(1);
+        }
+
+        try {
+            new TftpLoadGenerator(args).run();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    public TftpLoadGenerator(String[] args) {
+        host = args[0];
+        port = Integer.parseInt(args[1]);
+
+        Map<String, String> options = new HashMap<>();
+        for (String arg : Arrays.copyOfRange(args, 2, args.length)) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException("Invalid option: " + arg + " (expected --name=value)");
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        sessions = Integer.parseInt(options.getOrDefault("sessions", "100"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        reportIntervalSeconds = Integer.parseInt(options.getOrDefault("report-interval", "5"));
+        blockSize = Integer.parseInt(options.getOrDefault("blksize", "512"));
+        windowSize = Integer.parseInt(options.getOrDefault("windowsize", "1"));
+        if (blockSize < 8 || blockSize > 65464 || windowSize < 1 || windowSize > 64)
+            throw new IllegalArgumentException("blksize must be 8-65464 and windowsize 1-64");
+
+        uploadContent = new byte[Integer.parseInt(options.getOrDefault("upload-size", "65536"))];
+        new Random(uploadContent.length).nextBytes(uploadContent);
+
+        for (String rate : options.getOrDefault("rate", "RRQ:50,WRQ:10,DIRQ:10,DELRQ:10").split(",")) {
+            String[] operationAndRate = rate.split(":");
+            if (operationAndRate.length != 2)
+                throw new IllegalArgumentException("Invalid rate: " + rate + " (expected OPERATION:operations per second)");
+            rates.put(Operation.valueOf(operationAndRate[0].toUpperCase()), Double.parseDouble(operationAndRate[1]));
+        }
+
+        if (options.containsKey("files"))
+            filesToRead = Arrays.asList(options.get("files").split(","));
+
+        for (Operation operation : Operation.values())
+            results.put(operation, new Results());
+    }
+
+    public void run() throws InterruptedException {
+        List<LoadSession> connected = connectSessions();
+        if (connected.isEmpty())
+            return;
+
+        if (filesToRead == null && rates.getOrDefault(Operation.RRQ, 0.0) > 0)
+            filesToRead = discoverFiles(connected.get(0));
+        if (filesToRead != null && filesToRead.isEmpty())
+            throw new IllegalArgumentException("There are no files to download - upload some, or pass --files");
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < connected.size(); i++) {
+            LoadSession session = connected.get(i);
+            Thread worker = new Thread(null, () -> work(session), "load-session-" + i, SESSION_THREAD_STACK_SIZE);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        System.out.println("Running " + rates + " operations per second for " + durationSeconds + "s on "
+                + connected.size() + " sessions");
+        long startNanos = System.nanoTime();
+        schedule(startNanos, startNanos + TimeUnit.SECONDS.toNanos(durationSeconds));
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        running = false;
+        int notStarted = tasks.size();
+        tasks.clear();
+        for (Thread worker : workers)
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+
+        report(elapsedNanos, notStarted);
+        cleanUp(connected);
+    }
+
+    //------------------ HELPER FUNCTION ------------------//
+    private List<LoadSession> connectSessions() {
+        List<LoadSession> connected = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            try {
+                LoadSession session = new LoadSession(host, port, blockSize, windowSize);
+                if (session.login("load-" + runId + "-" + i))
+                    connected.add(session);
+                else {
+                    System.out.println("Session " + i + " could not log in");
+                    session.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Session " + i + " could not connect (" + e.getMessage() + ")");
+            }
+        }
+        System.out.printf("%d sessions logged in (%d ms)%n", connected.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return connected;
+    }
+
+    private List<String> discoverFiles(LoadSession session) {
+        List<String> files = new ArrayList<>();
+        try {
+            List<String> listing = session.listDirectory();
+            if (listing != null)
+                for (String filename : listing)
+                    if (!filename.startsWith("load-")) //Files of load generators come and go
+                        files.add(filename);
+        } catch (IOException e) {
+            System.out.println("Could not list the files of the server (" + e.getMessage() + ")");
+        }
+        return files;
+    }
+
+    // Adds every operation to the queue at its scheduled time, until 'endNanos'
+    private void schedule(long startNanos, long endNanos) {
+        Map<Operation, Long> intervals = new EnumMap<>(Operation.class);
+        Map<Operation, Long> nextTimes = new EnumMap<>(Operation.class);
+        for (Map.Entry<Operation, Double> rate : rates.entrySet()) {
+            if (rate.getValue() > 0) {
+                intervals.put(rate.getKey(), (long) (TimeUnit.SECONDS.toNanos(1) / rate.getValue()));
+                nextTimes.put(rate.getKey(), startNanos);
+            }
+        }
+        if (nextTimes.isEmpty())
+            return;
+
+        long nextReportNanos = startNanos + TimeUnit.SECONDS.toNanos(reportIntervalSeconds);
+        Map<Operation, Long> reportedCounts = new EnumMap<>(Operation.class);
+        while (true) {
+            Operation next = null;
+            for (Map.Entry<Operation, Long> nextTime : nextTimes.entrySet())
+                if (next == null || nextTime.getValue() < nextTimes.get(next))
+                    next = nextTime.getKey();
+
+            long scheduledNanos = nextTimes.get(next);
+            if (scheduledNanos >= endNanos)
+                return;
+
+            long now;
+            while ((now = System.nanoTime()) < scheduledNanos)
+                LockSupport.parkNanos(scheduledNanos - now);
+            tasks.add(new Task(next, scheduledNanos));
+            nextTimes.put(next, scheduledNanos + intervals.get(next));
+
+            if (now >= nextReportNanos) {
+                reportProgress(now - startNanos, reportedCounts);
+                nextReportNanos += TimeUnit.SECONDS.toNanos(reportIntervalSeconds);
+            }
+        }
+    }
+
+    // Runs the scheduled operations on 'session' until the run ends (or the connection fails)
+    private void work(LoadSession session) {
+        try {
+            while (running) {
+                Task task = tasks.poll(100, TimeUnit.MILLISECONDS);
+                if (task == null || !running)
+                    continue;
+
+                Results operationResults = results.get(task.operation);
+                String deletedFile = null;
+                long bytes;
+                switch (task.operation) {
+                    case RRQ:
+                        bytes = session.download(filesToRead.get(ThreadLocalRandom.current().nextInt(filesToRead.size())));
+                        break;
+                    case WRQ:
+                        String filename = "load-" + runId + "-" + uploadCounter.incrementAndGet() + ".bin";
+                        bytes = session.upload(filename, uploadContent);
+                        if (bytes >= 0)
+                            uploadedFiles.add(filename);
+                        break;
+                    case DIRQ:
+                        bytes = session.directoryListing();
+                        break;
+                    default: //DELRQ
+                        deletedFile = uploadedFiles.poll();
+                        if (deletedFile == null) {
+                            operationResults.skipped.incrementAndGet();
+                            continue;
+                        }
+                        bytes = session.delete(deletedFile);
+                        break;
+                }
+
+                if (bytes < 0)
+                    operationResults.errors.incrementAndGet();
+                else {
+                    operationResults.bytes.addAndGet(bytes);
+                    operationResults.latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - task.scheduledNanos));
+                }
+            }
+        } catch (IOException e) {
+            failedSessions.incrementAndGet();
+            System.out.println(Thread.currentThread().getName() + " failed (" + e.getMessage() + ")");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reportProgress(long elapsedNanos, Map<Operation, Long> reportedCounts) {
+        StringBuilder line = new StringBuilder(String.format("%4ds", TimeUnit.NANOSECONDS.toSeconds(elapsedNanos)));
+        for (Operation operation : rates.keySet()) {
+            long count = results.get(operation).latencies.count();
+            long sinceLastReport = count - reportedCounts.getOrDefault(operation, 0L);
+            reportedCounts.put(operation, count);
+            line.append(String.format("  %s %.1f/s", operation, (double) sinceLastReport / reportIntervalSeconds));
+        }
+        line.append("  waiting ").append(tasks.size());
+        System.out.println(line);
+    }
+
+    private void report(long elapsedNanos, int notStarted) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("%-6s %9s %7s %8s %9s %9s %10s %10s %10s %10s%n",
+                "op", "count", "errors", "skipped", "ops/s", "MB/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+        for (Operation operation : rates.keySet()) {
+            Results operationResults = results.get(operation);
+            LatencyHistogram latencies = operationResults.latencies;
+            System.out.printf("%-6s %9d %7d %8d %9.1f %9.2f %10.2f %10.2f %10.2f %10.2f%n", operation,
+                    latencies.count(), operationResults.errors.get(), operationResults.skipped.get(),
+                    latencies.count() / seconds, operationResults.bytes.get() / seconds / (1 << 20),
+                    latencies.percentile(50) / 1000.0, latencies.percentile(99) / 1000.0,
+                    latencies.percentile(99.9) / 1000.0, latencies.max() / 1000.0);
+        }
+        if (notStarted > 0)
+            System.out.println(notStarted + " scheduled operations were not started - the sessions could not keep up");
+        if (failedSessions.get() > 0)
+            System.out.println(failedSessions.get() + " sessions failed");
+        System.out.println("Latencies are measured from the time every operation was scheduled at.");
+    }
+
+    // Deletes the files that were uploaded and not deleted, and disconnects all of the sessions
+    private void cleanUp(List<LoadSession> connected) {
+        String filename;
+        while ((filename = uploadedFiles.poll()) != null) {
+            try {
+                connected.get(0).delete(filename);
+            } catch (IOException e) {
+                break;
+            }
+        }
+
+        for (LoadSession session : connected) {
+            try {
+                session.disconnect();
+                session.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -2,26 +2,64 @@ package bgu.spl.net.impl.tftp;
 
 import bgu.spl.net.api.MessagingProtocol;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayDeque;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Checksum;
 import java.io.IOException;
 
 public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
+    private static final int DEFAULT_BLOCK_SIZE = 512;
+    private static final int REQUESTED_BLOCK_SIZE = 65464; //Largest data section a DATA packet may carry (RFC 2348)
+    private static final int REQUESTED_WINDOW_SIZE = 16; //DATA packets the server may send before waiting for an ACK
+    private static final String BLOCK_SIZE_OPTION = "blksize";
+    private static final String WINDOW_SIZE_OPTION = "windowsize";
+    private static final String TRANSFER_SIZE_OPTION = "tsize";
+    private static final String OFFSET_OPTION = "offset";
+    private static final String COMPRESSION_OPTION = "compress";
+    private static final String DEFLATE = "deflate";
+    private static final String NO_COMPRESSION = "none";
+    //-Dtftp.compress=none transfers the files as they are
+    private static final String REQUESTED_COMPRESSION = System.getProperty("tftp.compress", DEFLATE);
+    private static final String DIGEST_OPTION = "digest";
+    private static final String SHA_256 = "sha-256";
+    private static final String NO_DIGEST = "none";
+    //-Dtftp.digest=none transfers the files without checksums
+    private static final String REQUESTED_DIGEST = System.getProperty("tftp.digest", SHA_256);
+
     private boolean terminate = false;
-    private short lastBlock = 0;
-    private Queue<byte[]> packets = new ConcurrentLinkedQueue<>();
+    private short lastBlock = 0; //Block number of the last DATA packet uploaded
+    private FileChannel fileToUpload; //Read one block at a time - only the block waiting for its ACK is in memory
+    private DeflatedFileReader deflatedUpload; //Deflates the file to upload, null if the upload is not compressed
+    private byte[] lastDataPacket; //The uploaded DATA packet that was not acknowledged yet, null if there is no upload
     private Opcode lastOpcode = Opcode.UNKNOWN;
+    private Opcode ackedRequest = Opcode.UNKNOWN; //The last request that the server answers with ACK 0 (LOGRQ, DELRQ, DISC, WRQ)
     private final String directoryPath = "";
     private String fileTransferred = "";
     private ArrayDeque<Byte> currentDir = new ArrayDeque<>();
     private String lastArg;
-    private FileOutputStream fStream;
+    private DownloadSink downloadSink; //Writes the file of the current download
+    private long transferSize = -1; //Size of the downloaded file, if the server sent it (OACK)
+    private long resumeOffset = 0; //Byte the current transfer starts from - not 0 if it resumes an interrupted one (OACK)
+    private boolean deflated = false; //The DATA blocks of the current transfer are deflated (OACK)
+    private boolean checksummed = false; //The DATA blocks of the current transfer carry their CRC32C, the file its digest (OACK)
+    private final Checksum blockChecksum = Checksums.newCrc32c();
+    private MessageDigest uploadDigest; //Of the uploaded file, computed while it is read - null if the upload is not checksummed
+    private String downloadDigest; //The digest of the downloaded file that the server sent (DIGEST), null until it is received
+    private boolean downloadStopped = false; //A block of the current download did not match its checksum - the rest is ignored
+    private int blockSize = DEFAULT_BLOCK_SIZE; //Negotiated with the server (OACK) for the current transfer
+    private int windowSize = 1; //Negotiated with the server (OACK) for the current download
+    private int packetsSinceLastAck = 0;
+    private int batchFilesStarted = 0; //Files of the current batch download (BRRQ) the server sent
+    private int batchFilesFailed = 0; //Files of the current batch download the server could not send
 
     @Override
     public byte[] process(byte[] message) {
@@ -47,17 +85,45 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
                 handleBroadcast(message);
                 break;
 
+            case OACK:
+                handleOptionAck(message);
+                break;
+
+            case FILE:
+                handleFile(message);
+                break;
+
+            case DIGEST:
+                handleDigest(message);
+                break;
+
             case UNKNOWN:
                 response = createErrorMessage(TftpError.NOT_DEFINED);
                 break;
 
+            case BRRQ:
+                batchFilesStarted = 0;
+                batchFilesFailed = 0;
+                //No break - the files of a batch are downloaded as an RRQ download is
             case RRQ: 
             case WRQ:
-                lastArg = new String(message, 2, message.length - 3, StandardCharsets.UTF_8);  
+                //The files of a batch are named by their FILE packets
+                lastArg = opcode == Opcode.BRRQ ? "" : new String(message, 2, message.length - 3, StandardCharsets.UTF_8);
+                blockSize = DEFAULT_BLOCK_SIZE; //Until the server acknowledges the options of this request
+                windowSize = 1;
+                transferSize = -1;
+                resumeOffset = 0;
+                deflated = false;
+                checksummed = false;
+                downloadDigest = null;
+                downloadStopped = false;
+                packetsSinceLastAck = 0;
                 //No break - RRQ/WRQ should save last opcode as well
                 
             default: lastOpcode = opcode; //LOGRQ, DELRQ, DISC, DIRQ
         }
+        if (opcode == Opcode.LOGRQ || opcode == Opcode.DELRQ || opcode == Opcode.DISC || opcode == Opcode.WRQ)
+            ackedRequest = opcode; //Its ACK 0 may arrive after the next request was sent
         return response;
     }
 
@@ -66,13 +132,65 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
         return terminate; 
     }
 
+    /**
+     * The connection to the server was lost - the part of the current download is kept, and the
+     * current upload is stopped. Both are resumed by sending the same request again.
+     */
+    @Override
+    public void connectionClosed() {
+        if (downloadSink != null) {
+            downloadSink.interrupt(); //Prints how to resume once the received data is written
+            downloadSink = null;
+        }
+        if (fileToUpload != null) {
+            closeUpload();
+            System.out.println("Upload of " + fileTransferred + " was interrupted - WRQ " + fileTransferred + " again to resume it");
+        }
+    }
+
+    /**
+     * @param request an encoded request that is about to be sent to the server
+     * @return the OPT packets to send right before the request
+     */
+    public List<byte[]> requestOptions(byte[] request) {
+        List<byte[]> options = new ArrayList<>();
+        Opcode opcode = Opcode.extract(request);
+
+        if (opcode == Opcode.RRQ || opcode == Opcode.WRQ)
+            options.add(buildOptionPacket(BLOCK_SIZE_OPTION, Integer.toString(REQUESTED_BLOCK_SIZE)));
+        if (opcode == Opcode.RRQ) {
+            options.add(buildOptionPacket(WINDOW_SIZE_OPTION, Integer.toString(REQUESTED_WINDOW_SIZE)));
+            options.add(buildOptionPacket(TRANSFER_SIZE_OPTION, "0")); //Sent back by the server right before the data
+        }
+        if (opcode == Opcode.BRRQ) { //A batch is neither resumed nor compressed - the FILE packets carry the sizes
+            options.add(buildOptionPacket(BLOCK_SIZE_OPTION, Integer.toString(REQUESTED_BLOCK_SIZE)));
+            options.add(buildOptionPacket(WINDOW_SIZE_OPTION, Integer.toString(REQUESTED_WINDOW_SIZE)));
+        }
+
+        //Resumes an interrupted transfer - the server starts from as much of it as both sides have
+        if (opcode == Opcode.RRQ || opcode == Opcode.WRQ) {
+            String path = directoryPath + new String(request, 2, request.length - 3, StandardCharsets.UTF_8);
+            if (opcode == Opcode.WRQ)
+                options.add(buildOptionPacket(OFFSET_OPTION, Long.toString(localFileSize(path))));
+            else if (Files.exists(DownloadSink.partOf(path)))
+                options.add(buildOptionPacket(OFFSET_OPTION, Long.toString(DownloadSink.partSize(path))));
+
+            if (!REQUESTED_COMPRESSION.equalsIgnoreCase(NO_COMPRESSION)) //The server answers whether the blocks are compressed
+                options.add(buildOptionPacket(COMPRESSION_OPTION, REQUESTED_COMPRESSION));
+            if (!REQUESTED_DIGEST.equalsIgnoreCase(NO_DIGEST)) //The server answers whether the blocks are checksummed
+                options.add(buildOptionPacket(DIGEST_OPTION, REQUESTED_DIGEST));
+        }
+
+        return options;
+    }
+
     private byte[] createErrorMessage(TftpError error) {
         byte[] pac = new byte[5 + error.getMessageBytes().length];
 
         pac[0] = Opcode.ERROR.toBytes()[0];
         pac[1] = Opcode.ERROR.toBytes()[1];
-        pac[2] = TftpError.NOT_DEFINED.getMessageBytes()[0];
-        pac[3] = TftpError.NOT_DEFINED.getMessageBytes()[1];
+        pac[2] = 0;
+        pac[3] = (byte) error.ordinal(); //The error code
 
         System.arraycopy(error.getMessageBytes(), 0, pac, 4, error.getMessageBytes().length);
         pac[pac.length - 1] = 0;
@@ -84,22 +202,18 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
     private byte[] handleAck(byte[] message) {
         short ackBlock = (short) ((message[2] << 8) | (message[3] & 0xFF)); //ACK block number
         Opcode cmdOpcode;
-        byte[] lastPacket = null;
-
-        if (ackBlock == 0)
-            cmdOpcode = lastOpcode; 
 
-        else if (packets.isEmpty())
-            return createErrorMessage(TftpError.NOT_DEFINED);
-        else {
-            lastPacket = packets.peek();
-            cmdOpcode = Opcode.extract(lastPacket);
+        if (lastDataPacket != null) //An upload is in progress (its block numbers may wrap around to 0)
+            cmdOpcode = Opcode.DATA;
+        else if (ackBlock == 0) {
+            cmdOpcode = ackedRequest;
+            ackedRequest = Opcode.UNKNOWN;
         }
+        else
+            return createErrorMessage(TftpError.NOT_DEFINED);
 
         //extract block number from DATA packet if exists
-        short packetBlock = cmdOpcode == Opcode.DATA
-                ? (short) ((lastPacket[4] << 8) | (short) (lastPacket[5]) & 0xFF)
-                : 0;
+        short packetBlock = cmdOpcode == Opcode.DATA ? lastBlock : 0;
         byte[] response = null;
 
         if (packetBlock != ackBlock)
@@ -110,18 +224,17 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
         switch (cmdOpcode) {
             case WRQ:
                 filename = lastArg;
-                addPackets(filename);
                 fileTransferred = filename;
-                response = packets.peek();
+                response = startUpload(filename);
                 break;
             case DATA:
-                packets.remove();
-                response = packets.peek();
-
-                if (response == null) {
+                if (lastDataPacket.length - dataHeaderSize() < blockSize) { //The last DATA packet of the file was acknowledged
+                    closeUpload();
                     System.out.println("WRQ " + fileTransferred + " complete");
                     fileTransferred = "";
                 }
+                else
+                    response = nextDataPacket();
 
                 break;
             case LOGRQ: System.out.println("Succesfuly logged in to the server!"); break;
@@ -131,89 +244,134 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
                 terminate = true;
                 System.out.println("Server has terminated the connection with this client");
                 break;
-            default:
-                response = createErrorMessage(TftpError.ILLEGAL_OP);
+            default: //An ACK 0 that answers no request - nothing to do with it
                 break;
         }
 
         return response;
     }
 
-    // Add packets from file to the queue
-    private void addPackets(String filename) {
-        File fileToSend = new File(directoryPath + filename);
+    // Opens the file to upload and returns its first DATA packet
+    private byte[] startUpload(String filename) {
         System.out.println("Uploading the file in: " + directoryPath + filename);
 
-        if (!fileToSend.exists())
+        try {
+            fileToUpload = FileChannel.open(Paths.get(directoryPath + filename), StandardOpenOption.READ);
+            fileToUpload.position(resumeOffset); //The server already has the bytes before it
+            uploadDigest = checksummed ? Checksums.newSha256() : null;
+            if (uploadDigest != null)
+                Checksums.hashFile(uploadDigest, fileToUpload, resumeOffset); //The digest is of the whole file
+            if (deflated)
+                deflatedUpload = new DeflatedFileReader(fileToUpload, uploadDigest);
+        } catch (IOException e) {
             System.out.println(new String(TftpError.FILE_NOT_FOUND.getMessageBytes(), StandardCharsets.UTF_8));
+            return null;
+        }
 
-        try (FileInputStream fstream = new FileInputStream(fileToSend)) {
-            ArrayDeque<Byte> packetData = new ArrayDeque<>();
-            int nextByte;
-            byte[] packet;
-
-            lastBlock = 0;
-
-            while ((nextByte = fstream.read()) != -1) {
-                packetData.add((byte) nextByte);
+        lastBlock = 0;
+        return nextDataPacket();
+    }
 
-                // Assuming MAX_DATA_PACKET is 512
-                if (packetData.size() == 512) {
-                    packet = buildPacket(packetData, ++lastBlock);
-                    packets.add(packet);
-                    packetData.clear();
+    // Reads the next block of the uploaded file into a DATA packet. The last packet is shorter than
+    // the block size - an empty one if the file size is a multiple of it. The last packet of a checksummed
+    // upload is returned right after the DIGEST of the file
+    private byte[] nextDataPacket() {
+        int headerSize = dataHeaderSize();
+        byte[] packet = new byte[headerSize + blockSize];
+        int packetDataSize;
+
+        try {
+            if (deflatedUpload != null)
+                packetDataSize = deflatedUpload.read(packet, headerSize, blockSize);
+            else {
+                ByteBuffer packetData = ByteBuffer.wrap(packet, headerSize, blockSize);
+                while (packetData.hasRemaining() && fileToUpload.read(packetData) != -1) {
+                    //Read until the block is full or the file has ended
                 }
+                packetDataSize = packetData.position() - headerSize;
+                if (uploadDigest != null)
+                    uploadDigest.update(packet, headerSize, packetDataSize);
             }
+        } catch (IOException e) {
+            System.out.println("Error reading the file to upload" + '\n' + e.getMessage());
+            closeUpload();
+            return createErrorMessage(TftpError.NOT_DEFINED);
+        }
 
-            if(!packetData.isEmpty()) {
-                packet = buildPacket(packetData, ++lastBlock);
-                packets.add(packet);
-            }
+        if (packetDataSize < blockSize)
+            packet = Arrays.copyOf(packet, headerSize + packetDataSize);
+        buildDataHeader(packet, packetDataSize, ++lastBlock);
+
+        lastDataPacket = packet;
+        if (uploadDigest == null || packetDataSize == blockSize)
+            return packet;
 
-        } catch (IOException ignored) {
-            System.out.println("Error dividing the file to upload into data packets" + '\n' + ignored.getMessage());
+        byte[] digestPacket = buildDigestPacket(Checksums.toHex(uploadDigest.digest()));
+        byte[] packets = Arrays.copyOf(digestPacket, digestPacket.length + packet.length);
+        System.arraycopy(packet, 0, packets, digestPacket.length, packet.length);
+        return packets;
+    }
+
+    private void closeUpload() {
+        lastDataPacket = null;
+        uploadDigest = null;
+        if (deflatedUpload != null) {
+            deflatedUpload.close();
+            deflatedUpload = null;
         }
+        try {
+            fileToUpload.close();
+        } catch (IOException e) {
+            System.out.println("IOException thrown when closing the uploaded file");
+        }
+        fileToUpload = null;
     }
 
     //handle incoming DATA packet
     private byte[] handleData(byte[] packet) {
         short block = (short) ((packet[4] << 8) | (packet[5] & 0xFF));
-        short packetSize = (short) ((packet[2] << 8) | (packet[3] & 0xFF));
+        int packetSize = packet.length - dataHeaderSize(); //Of the data section
         byte[] bytes;
-        File file = null;
 
-        if (lastOpcode == Opcode.RRQ) {
+        if (lastOpcode == Opcode.RRQ || lastOpcode == Opcode.BRRQ) {
 
-            if(block == 1) {
-                try {
-                    file = new File(directoryPath + lastArg); //directoryPath + File.separator + lastArg
-                    fStream = new FileOutputStream(file, true);
-    
-                } catch(FileNotFoundException e) {
-                    System.out.println("File not found - inside protocol - handle data packets (RRQ)");
+            if (downloadStopped)
+                return null;
+            if (checksummed && !checksumMatches(packet)) { //The file is deleted - RRQ downloads it again
+                System.out.println("Block " + (block & 0xFFFF) + " of " + lastArg + " does not match its checksum - the download is stopped");
+                downloadStopped = true;
+                if (downloadSink != null) {
+                    downloadSink.abort();
+                    downloadSink = null;
                 }
+                return createErrorMessage(TftpError.CHECKSUM_MISMATCH);
             }
 
-            try {
-                fStream.write(packet, 6, packet.length - 6);
-                fStream.flush();
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                System.out.println("=== Some IO exception was thrown when writing to file (RRQ) ===\n");
-            } 
-
-            // Assuming MAX_DATA_PACKET is 512
-            if (packetSize < 512) {
+            if (downloadSink == null && lastOpcode == Opcode.RRQ) { //The first DATA packet of the download
                 try {
-                    System.out.println("File " + lastArg + " download completed");
-                    fStream.close();
-                } catch(IOException e) {
-                    System.out.println("IOException thrown when closing the FileOutputStream"
-                                    + "in the protocol - handleData packets - RRQ");
+                    long sizeHint = transferSize >= 0 ? transferSize - resumeOffset : -1; //Sizes the sink's buffer
+                    downloadSink = new DownloadSink(directoryPath + lastArg, resumeOffset, deflated, sizeHint, checksummed);
+                } catch (IOException e) {
+                    System.out.println("Could not create the downloaded file " + lastArg + " (" + e.getMessage() + ")");
                 }
-                file = null;
             }
 
+            //The block is written by the sink's thread - it is acknowledged right away
+            if (downloadSink != null)
+                downloadSink.write(packet);
+
+            boolean lastPacket = packetSize < blockSize;
+            if (lastPacket && downloadSink != null) {
+                downloadSink.finish(downloadDigest); //Prints that the download completed once the file is written and checked
+                downloadSink = null;
+            }
+
+            // The server waits for an ACK only at the end of every window (and of every file)
+            packetsSinceLastAck++;
+            if (!lastPacket && packetsSinceLastAck < windowSize)
+                return null;
+            packetsSinceLastAck = 0;
+
         } else { //DIRQ Packet
             System.out.println("====== Server's directory list ======");
             for (int i = 6; i < packet.length; i++) {
@@ -238,6 +396,106 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
         short errNum = (short) ((packet[2] << 8) | (packet[3] & 0xFF));
         String msg = new String(packet, 4, packet.length - 5, StandardCharsets.UTF_8);
         System.out.println("Error " + errNum + " (" + msg + ")");
+
+        if (fileToUpload != null) //The server stopped the upload
+            closeUpload();
+        if (downloadSink != null) { //The server stopped the download
+            downloadSink.abort();
+            downloadSink = null;
+        }
+    }
+
+    // A FILE packet starts the next file of a batch download, or ends the batch (empty filename)
+    private void handleFile(byte[] message) {
+        short errNum = (short) ((message[2] << 8) | (message[3] & 0xFF));
+        int nameEnd = 4;
+        while (message[nameEnd] != 0)
+            nameEnd++;
+
+        String filename = new String(message, 4, nameEnd - 4, StandardCharsets.UTF_8);
+        long fileSize = Long.parseLong(new String(message, nameEnd + 1, message.length - nameEnd - 2, StandardCharsets.UTF_8));
+
+        if (filename.isEmpty()) {
+            System.out.println("BRRQ complete - " + (batchFilesStarted - batchFilesFailed) + " files received"
+                    + (batchFilesFailed > 0 ? ", " + batchFilesFailed + " failed" : ""));
+            return;
+        }
+
+        batchFilesStarted++;
+        if (errNum != 0) {
+            batchFilesFailed++;
+            TftpError error = errNum > 0 && errNum < TftpError.values().length ? TftpError.values()[errNum] : TftpError.NOT_DEFINED;
+            System.out.println("Error " + errNum + " (" + new String(error.getMessageBytes(), StandardCharsets.UTF_8) + ": " + filename + ")");
+            return;
+        }
+
+        try { //A file with the same name is replaced once this one is downloaded
+            downloadSink = new DownloadSink(directoryPath + filename, 0, false, fileSize, false);
+        } catch (IOException e) {
+            batchFilesFailed++;
+            System.out.println("Could not create the downloaded file " + filename + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private void handleOptionAck(byte[] message) {
+        int nameEnd = 2;
+        while (message[nameEnd] != 0)
+            nameEnd++;
+
+        String name = new String(message, 2, nameEnd - 2, StandardCharsets.UTF_8);
+        String value = new String(message, nameEnd + 1, message.length - nameEnd - 2, StandardCharsets.UTF_8);
+
+        if (name.equals(BLOCK_SIZE_OPTION))
+            blockSize = Integer.parseInt(value);
+        else if (name.equals(WINDOW_SIZE_OPTION))
+            windowSize = Integer.parseInt(value);
+        else if (name.equals(TRANSFER_SIZE_OPTION))
+            transferSize = Long.parseLong(value);
+        else if (name.equals(COMPRESSION_OPTION))
+            deflated = value.equalsIgnoreCase(DEFLATE);
+        else if (name.equals(DIGEST_OPTION))
+            checksummed = value.equalsIgnoreCase(SHA_256);
+        else if (name.equals(OFFSET_OPTION)) {
+            resumeOffset = Long.parseLong(value);
+            if (resumeOffset > 0)
+                System.out.println("Resuming " + lastArg + " from byte " + resumeOffset
+                        + (transferSize >= 0 ? " of " + transferSize : ""));
+        }
+    }
+
+    // A DIGEST packet precedes the last DATA packet of a checksummed download - the digest of the whole file
+    private void handleDigest(byte[] message) {
+        int algorithmEnd = 2;
+        while (message[algorithmEnd] != 0)
+            algorithmEnd++;
+
+        String algorithm = new String(message, 2, algorithmEnd - 2, StandardCharsets.UTF_8);
+        if (algorithm.equalsIgnoreCase(SHA_256))
+            downloadDigest = new String(message, algorithmEnd + 1, message.length - algorithmEnd - 2, StandardCharsets.UTF_8);
+    }
+
+    // Checks the CRC32C of a checksummed DATA packet (bytes 6-9) against its data section
+    private boolean checksumMatches(byte[] packet) {
+        if (packet.length < 10)
+            return false;
+        blockChecksum.reset();
+        blockChecksum.update(packet, 10, packet.length - 10);
+        int checksum = (packet[6] & 0xFF) << 24 | (packet[7] & 0xFF) << 16 | (packet[8] & 0xFF) << 8 | (packet[9] & 0xFF);
+        return checksum == (int) blockChecksum.getValue();
+    }
+
+    // Size of the header of the DATA packets of the current transfer - with the CRC32C if it is checksummed
+    private int dataHeaderSize() {
+        return checksummed ? 10 : 6;
+    }
+
+    // Size of a local file, 0 if it cannot be read - the server then starts the upload from the beginning
+    private long localFileSize(String path) {
+        try {
+            return Files.size(Paths.get(path));
+        } catch (IOException e) {
+            return 0;
+        }
     }
 
     private void handleBroadcast(byte[] message) {
@@ -254,21 +512,50 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
 
     }
 
-    //build DATA packet
-    private byte[] buildPacket(ArrayDeque<Byte> bytes, short block) {
-        byte[] packet = new byte[6 + bytes.size()];
-        int bytesSize = bytes.size();
-
+    //write the header of a DATA packet whose data section is already in place (and its CRC32C, if it is checksummed)
+    private void buildDataHeader(byte[] packet, int bytesSize, short block) {
+        int headerSize = dataHeaderSize();
+        int size = bytesSize + headerSize - 6; //The size field counts the CRC32C
         packet[0] = Opcode.DATA.toBytes()[0];
         packet[1] = Opcode.DATA.toBytes()[1];
-        packet[2] = (byte) (bytesSize >> 8);
-        packet[3] = (byte) (bytesSize & 0xFF);
+        packet[2] = (byte) (size >> 8);
+        packet[3] = (byte) (size & 0xFF);
         packet[4] = (byte) (block >> 8);
         packet[5] = (byte) (block & 0xFF);
+        if (checksummed) {
+            blockChecksum.reset();
+            blockChecksum.update(packet, headerSize, bytesSize);
+            int checksum = (int) blockChecksum.getValue();
+            packet[6] = (byte) (checksum >> 24);
+            packet[7] = (byte) (checksum >> 16);
+            packet[8] = (byte) (checksum >> 8);
+            packet[9] = (byte) checksum;
+        }
+    }
+
+    //build DIGEST packet - the digest of the uploaded file, sent right before its last DATA packet
+    private byte[] buildDigestPacket(String hexDigest) {
+        byte[] algorithmBytes = SHA_256.getBytes(StandardCharsets.UTF_8);
+        byte[] digestBytes = hexDigest.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[4 + algorithmBytes.length + digestBytes.length];
+
+        packet[0] = Opcode.DIGEST.toBytes()[0];
+        packet[1] = Opcode.DIGEST.toBytes()[1];
+        System.arraycopy(algorithmBytes, 0, packet, 2, algorithmBytes.length);
+        System.arraycopy(digestBytes, 0, packet, 3 + algorithmBytes.length, digestBytes.length);
+        return packet;
+    }
 
-        for (int j = 0; j < bytesSize; j++)
-            packet[6 + j] = bytes.removeFirst();
+    //build OPT packet
+    private byte[] buildOptionPacket(String name, String value) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] packet = new byte[4 + nameBytes.length + valueBytes.length];
 
+        packet[0] = Opcode.OPT.toBytes()[0];
+        packet[1] = Opcode.OPT.toBytes()[1];
+        System.arraycopy(nameBytes, 0, packet, 2, nameBytes.length);
+        System.arraycopy(valueBytes, 0, packet, 3 + nameBytes.length, valueBytes.length);
         return packet;
     }
 
@@ -296,6 +583,11 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
         DELRQ(8), 
         BCAST(9), 
         DISC(10), 
+        OPT(11),
+        OACK(12),
+        BRRQ(13),
+        FILE(14),
+        DIGEST(15),
         UNKNOWN(-1);
         
         private final short value;
@@ -326,6 +618,7 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
                 case "DELRQ":   return DELRQ;
                 case "DISC":    return DISC;
                 case "DIRQ":    return DIRQ;
+                case "BRRQ":    return BRRQ;
                 default:        return UNKNOWN;
             }
         }
@@ -350,7 +643,9 @@ public class TftpMessagingProtocol implements MessagingProtocol<byte[]> {
         ILLEGAL_OP("Illegal TFTP operation"),
         FILE_EXISTS("File already exists"),
         NOT_LOGGED_IN("User not logged in"),
-        ALR_LOGGED_IN("User already logged in");
+        ALR_LOGGED_IN("User already logged in"),
+        OPTION_FAILED("Option negotiation failed"),
+        CHECKSUM_MISMATCH("Checksum mismatch");
 
         private final byte[] messageBytes;
 
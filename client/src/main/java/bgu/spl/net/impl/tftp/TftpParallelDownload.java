@@ -0,0 +1,229 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a single large file over several connections at once: the file is split into ranges that are
+ * downloaded in parallel (RRQ with the offset/length options), each one written into its place in the local file.
+ * <p>
+ * The local file is sized to the whole file up front as '&lt;filename&gt;.part', and renamed once all of the ranges
+ * were downloaded. There are more ranges than sessions, and the sessions take them from a shared queue - a slow
+ * connection downloads fewer of them. A range whose connection fails or stalls (no packet within the timeout) is
+ * put back in the queue and downloaded again over a new connection, up to a number of retries per range.
+ * <p>
+ * Usage: TftpParallelDownload &lt;host&gt; &lt;port&gt; &lt;filename&gt; [--sessions=4] [--user=parallel]
+ * [--range-size=bytes] [--blksize=65464] [--windowsize=16] [--timeout=10] [--retries=3]
+ */
+public class TftpParallelDownload {
+
+    private static final long MIN_RANGE_SIZE = 1 << 20;
+    private static final int RANGES_PER_SESSION = 4; //Ranges are taken by the faster sessions, the slow ones hold back less
+
+    //A part of the file that is downloaded by one request
+    private static final class Range {
+        final long offset;
+        final long length;
+        int failures = 0;
+
+        Range(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String filename;
+    private final int sessions;
+    private final String username;
+    private final long rangeSize; //0 - chosen by the size of the file
+    private final int blockSize;
+    private final int windowSize;
+    private final int timeoutSeconds;
+    private final int retries;
+
+    private final ConcurrentLinkedQueue<Range> ranges = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connectionCounter = new AtomicInteger(); //Every connection logs in with a name of its own
+    private final AtomicInteger retriedRanges = new AtomicInteger();
+    private volatile IOException failure = null;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.out.println("usage: TftpParallelDownload <host> <port> <filename> [--sessions=4] [--user=parallel]"
+                    + " [--range-size=bytes] [--blksize=65464] [--windowsize=16] [--timeout=10] [--retries=3]");
+            System.exit(1);
+        }
+
+        try {
+            if (!new TftpParallelDownload(args).run())
+                System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    public TftpParallelDownload(String[] args) {
+        host = args[0];
+        port = Integer.parseInt(args[1]);
+        filename = args[2];
+
+        Map<String, String> options = new HashMap<>();
+        for (String arg : Arrays.copyOfRange(args, 3, args.length)) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException("Invalid option: " + arg + " (expected --name=value)");
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        sessions = Integer.parseInt(options.getOrDefault("sessions", "4"));
+        username = options.getOrDefault("user", "parallel");
+        rangeSize = Long.parseLong(options.getOrDefault("range-size", "0"));
+        blockSize = Integer.parseInt(options.getOrDefault("blksize", "65464"));
+        windowSize = Integer.parseInt(options.getOrDefault("windowsize", "16"));
+        timeoutSeconds = Integer.parseInt(options.getOrDefault("timeout", "10"));
+        retries = Integer.parseInt(options.getOrDefault("retries", "3"));
+        if (blockSize < 8 || blockSize > 65464 || windowSize < 1 || windowSize > 64)
+            throw new IllegalArgumentException("blksize must be 8-65464 and windowsize 1-64");
+        if (sessions < 1 || rangeSize < 0 || timeoutSeconds < 0 || retries < 0)
+            throw new IllegalArgumentException("sessions must be positive, range-size/timeout/retries not negative");
+    }
+
+    /**
+     * @return true if the whole file was downloaded
+     */
+    public boolean run() throws InterruptedException {
+        long fileSize;
+        try (LoadSession session = connect()) {
+            fileSize = session.fileSize(filename);
+            session.disconnect();
+        } catch (IOException e) {
+            System.out.println("Could not get the size of " + filename + " (" + e.getMessage() + ")");
+            return false;
+        }
+        if (fileSize < 0) {
+            System.out.println("Error 1 (File not found)");
+            return false;
+        }
+
+        long size = rangeSize > 0 ? rangeSize
+                : Math.max(MIN_RANGE_SIZE, (fileSize + sessions * RANGES_PER_SESSION - 1) / (sessions * RANGES_PER_SESSION));
+        for (long offset = 0; offset < fileSize; offset += size)
+            ranges.add(new Range(offset, Math.min(size, fileSize - offset)));
+
+        int workerCount = Math.min(sessions, ranges.size());
+        Path path = DownloadSink.partOf(filename);
+        long startTime = System.nanoTime();
+        try (FileChannel target = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (fileSize > 0) //Sized up front - the ranges are written into their places in any order
+                target.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < workerCount; i++) {
+                Thread worker = new Thread(() -> downloadRanges(target), "range-download-" + workers.size());
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers)
+                worker.join();
+        } catch (IOException e) {
+            if (failure == null)
+                failure = e;
+        }
+
+        try {
+            if (failure == null)
+                Files.move(path, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        if (failure != null) {
+            System.out.println("Error downloading " + filename + " (" + failure.getMessage() + ")");
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("File %s download completed - %d bytes in %.2f s (%.1f MB/s), %d sessions, %d ranges retried%n",
+                filename, fileSize, seconds, fileSize / seconds / (1 << 20), workerCount, retriedRanges.get());
+        return true;
+    }
+
+    //------------------ HELPER FUNCTION ------------------//
+    // Downloads ranges from the queue until it is empty - over one connection, replaced whenever a range fails
+    private void downloadRanges(FileChannel target) {
+        LoadSession session = null;
+        Range range;
+        while (failure == null && (range = ranges.poll()) != null) {
+            try {
+                if (session == null)
+                    session = connect();
+                long downloaded = session.downloadRange(filename, range.offset, range.length, target);
+                if (downloaded != range.length)
+                    throw new IOException(downloaded < 0 ? "the server answered with an error" : "the file has changed on the server");
+            } catch (IOException e) {
+                close(session);
+                session = null;
+                if (++range.failures > retries) {
+                    failure = new IOException("the range at byte " + range.offset + " failed " + range.failures
+                            + " times, last - " + e.getMessage());
+                    break;
+                }
+                System.out.println("Range at byte " + range.offset + " failed (" + e.getMessage() + ") - retrying");
+                retriedRanges.incrementAndGet();
+                ranges.add(range);
+            }
+        }
+
+        if (session != null) {
+            try {
+                session.disconnect();
+            } catch (IOException ignored) {
+            }
+            close(session);
+        }
+    }
+
+    // A new logged in connection - a read that waits longer than the timeout fails the range it downloads
+    private LoadSession connect() throws IOException {
+        LoadSession session = new LoadSession(host, port, blockSize, windowSize);
+        try {
+            session.setReadTimeout(timeoutSeconds * 1000);
+            String name = username + "-" + connectionCounter.incrementAndGet();
+            if (!session.login(name))
+                throw new IOException("could not log in as " + name);
+            return session;
+        } catch (IOException e) {
+            close(session);
+            throw e;
+        }
+    }
+
+    private static void close(LoadSession session) {
+        if (session != null) {
+            try {
+                session.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -14,4 +14,10 @@ public interface BidiMessagingProtocol<T>  {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+	/**
+	 * Called once the connection is closed - the protocol should release the resources of any unfinished work.
+	 */
+	default void connectionClosed() {
+	}
 }
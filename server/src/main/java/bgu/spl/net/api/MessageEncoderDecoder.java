@@ -1,5 +1,7 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +13,23 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * add the bytes of the given buffer to the decoding process, until a message is completed
+     * or the buffer has no more bytes. Bytes that follow a completed message are left in the buffer.
+     *
+     * @param buffer the bytes to consider for the currently decoded message,
+     * from its position up to its limit
+     * @return a message if the buffer completes one or null if it doesnt.
+     */
+    default T decode(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            T message = decodeNextByte(buffer.get());
+            if (message != null)
+                return message;
+        }
+        return null;
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -0,0 +1,185 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bgu.spl.net.srv.Log;
+
+/**
+ * Content addressed storage of the uploaded files - the content of every upload is stored once, as a blob named by
+ * its SHA-256 digest (computed while it was uploaded) in the blobs directory, and the file itself is a hard link to its blob. Uploads of the same
+ * content under other names add links to the same blob, so the content takes its disk space (and page cache) once.
+ * The files are still regular files of the server's directory - downloads, directory listings and the directory
+ * index work with them as with any other file.
+ * <p>
+ * Every blob counts the files that reference it. Deleting a file releases its reference, and a blob that is no
+ * longer referenced is deleted. Blobs are read only - a file cannot be changed in place, which would change all of
+ * the files that share its content. The references are rebuilt from the links when the server starts, blobs that
+ * are not referenced by any file are deleted then.
+ */
+public final class BlobStore {
+
+    private static final String BLOBS_DIRECTORY_SUFFIX = ".blobs"; //The blobs are kept next to the server's directory, never served
+    private static final String CONTENT_KEY_PREFIX = "\0"; //File names never hold a zero - content keys never equal a file name
+
+    private final Path directory;
+    private final Path blobs;
+    private final Map<String, String> digestsByFilename = new ConcurrentHashMap<>(); //Read without the lock by the cache
+    private final Map<String, Integer> referenceCounts = new HashMap<>(); //By digest
+    private long deduplicatedUploads = 0;
+
+    /**
+     * Opens the store of 'directory' (creates its blobs directory, '<directory>.blobs', if it does not exist) and counts
+     * the references of its blobs. The blobs directory is on the same file system as 'directory', for the hard links.
+     */
+    public BlobStore(Path directory) throws IOException {
+        this.directory = directory;
+        this.blobs = directory.resolveSibling(directory.getFileName() + BLOBS_DIRECTORY_SUFFIX);
+        Files.createDirectories(blobs);
+        scan();
+    }
+
+    /**
+     * Stores the completed upload 'file', whose content has 'digest', as 'target' - 'file' becomes the blob of its
+     * content (or is deleted, if another file already has the same content) and 'target' a link to the blob.
+     * A file system without hard links gets a copy of the blob, which is not deduplicated.
+     * @throws FileAlreadyExistsException if 'target' exists - 'file' is left as it is
+     */
+    synchronized void store(Path file, byte[] digest, Path target) throws IOException {
+        if (Files.exists(target))
+            throw new FileAlreadyExistsException(target.toString());
+
+        String hexDigest = HexFormat.of().formatHex(digest);
+        Path blob = blobs.resolve(hexDigest);
+        boolean duplicate = Files.exists(blob);
+        if (duplicate)
+            Files.delete(file);
+        else {
+            Files.move(file, blob);
+            blob.toFile().setReadOnly();
+        }
+
+        try {
+            Files.createLink(target, blob);
+        } catch (FileAlreadyExistsException ex) {
+            releaseIfUnreferenced(hexDigest);
+            throw ex;
+        } catch (UnsupportedOperationException | IOException ex) {
+            Log.warn("Could not link " + target + " to its blob (" + ex.getMessage() + ") - it is stored as a copy");
+            Files.copy(blob, target);
+            releaseIfUnreferenced(hexDigest);
+            return;
+        }
+
+        digestsByFilename.put(target.getFileName().toString(), hexDigest);
+        int references = referenceCounts.merge(hexDigest, 1, Integer::sum);
+        if (duplicate) {
+            deduplicatedUploads++;
+            Log.info("File " + target.getFileName() + " has the same content as " + (references - 1)
+                    + " other file(s) - the content is stored once");
+        }
+    }
+
+    /**
+     * Deletes 'filename', and its blob if no other file references it.
+     */
+    synchronized void delete(String filename) {
+        try {
+            Files.deleteIfExists(directory.resolve(filename));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        release(filename);
+    }
+
+    /**
+     * Releases the reference of 'filename' if it was deleted or replaced outside of the server
+     * (called with the name of every file that was changed outside of the server).
+     */
+    public synchronized void update(String filename) {
+        String hexDigest = digestsByFilename.get(filename);
+        if (hexDigest == null)
+            return;
+        try {
+            if (Files.isSameFile(directory.resolve(filename), blobs.resolve(hexDigest)))
+                return;
+        } catch (IOException ex) {
+            //The file does not exist anymore
+        }
+        release(filename);
+    }
+
+    /**
+     * @return the key of the content of 'filename' - the same for all of the files that share a blob,
+     * the name itself for a file that was not stored in the blobs
+     */
+    String contentKey(String filename) {
+        String hexDigest = digestsByFilename.get(filename);
+        return hexDigest != null ? CONTENT_KEY_PREFIX + hexDigest : filename;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "blobs: " + referenceCounts.size() + ", references: " + digestsByFilename.size()
+                + ", deduplicated uploads: " + deduplicatedUploads;
+    }
+
+    //=================================HELPER METHODS==================================
+
+    private void release(String filename) {
+        String hexDigest = digestsByFilename.remove(filename);
+        if (hexDigest != null && referenceCounts.merge(hexDigest, -1, Integer::sum) == 0)
+            releaseIfUnreferenced(hexDigest);
+    }
+
+    private void releaseIfUnreferenced(String hexDigest) {
+        if (referenceCounts.getOrDefault(hexDigest, 0) > 0)
+            return;
+        referenceCounts.remove(hexDigest);
+        try {
+            Files.deleteIfExists(blobs.resolve(hexDigest));
+            Log.debug("Blob " + hexDigest + " is no longer referenced - deleted");
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Counts the references of the blobs - the files of the directory that are links to them (the same file key).
+     */
+    private synchronized void scan() throws IOException {
+        Map<Object, String> digestsByFileKey = new HashMap<>();
+        try (DirectoryStream<Path> blobFiles = Files.newDirectoryStream(blobs)) {
+            for (Path blob : blobFiles) {
+                Object fileKey = Files.readAttributes(blob, BasicFileAttributes.class).fileKey();
+                String hexDigest = blob.getFileName().toString();
+                referenceCounts.put(hexDigest, 0);
+                if (fileKey != null)
+                    digestsByFileKey.put(fileKey, hexDigest);
+            }
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                String hexDigest = attributes.isRegularFile() ? digestsByFileKey.get(attributes.fileKey()) : null;
+                if (hexDigest != null) {
+                    digestsByFilename.put(file.getFileName().toString(), hexDigest);
+                    referenceCounts.merge(hexDigest, 1, Integer::sum);
+                }
+            }
+        }
+
+        for (String hexDigest : referenceCounts.keySet().toArray(new String[0])) //Left by uploads/deletes that were interrupted
+            releaseIfUnreferenced(hexDigest);
+        Log.info("Blob store - " + this);
+    }
+}
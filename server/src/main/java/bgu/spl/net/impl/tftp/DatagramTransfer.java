@@ -0,0 +1,266 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.Log;
+
+/**
+ * A transfer of the UDP server - a classic TFTP client, and the port (TID) the server opened for it.
+ * The transfer runs a TftpProtocol of its own, logged in with the client's address, and translates its packets:
+ * DATA packets are sent without their size field (the size of the datagram is the size of the block) and the field
+ * is added to the received ones, the packets classic clients do not know (OACK, BCAST, FILE) are not sent.
+ * <p>
+ * All of the methods but close() and offer() run on the thread of the UDP server. The datagrams sent in response to
+ * the last datagram that moved the transfer forward are sent again whenever the client does not answer within the
+ * timeout. A datagram that gets no response (a duplicate ACK) never causes a retransmission, so a delayed packet
+ * is never answered twice (the Sorcerer's Apprentice bug of RFC 1350).
+ */
+final class DatagramTransfer implements ConnectionHandler<byte[]> {
+
+    private static final int BLOCK_SIZE = 512; //No options are negotiated over UDP
+    private static final int DATA_HEADER_SIZE = 6; //Of the protocol's DATA packets, with the size field
+
+    private final DatagramChannel channel;
+    private final TftpProtocol protocol;
+    private final Connections<byte[]> connections;
+    private final long timeoutNanos;
+    private final int maxRetransmissions;
+    private int connectionId;
+    private String username;
+
+    private List<ByteBuffer> unanswered = new ArrayList<>(); //The datagrams that are sent again on a timeout
+    private List<ByteBuffer> sentNow = new ArrayList<>(); //The datagrams sent in response to the current datagram
+    private boolean discardSends = false; //While the transfer logs in - the client does not expect the ACK
+    private boolean errorSent = false;
+    private int lastDataBlock = -1; //Block number of the last DATA packet of a download, once it was sent
+    private boolean completed = false; //The last ACK of an upload was sent - it is sent again only if its DATA is
+    private long deadline; //System.nanoTime() at which the client is considered silent
+    private int retransmissions = 0;
+    private volatile boolean closeRequested = false;
+    private boolean finished = false;
+
+    DatagramTransfer(DatagramChannel channel, TftpProtocol protocol, Connections<byte[]> connections,
+                     long timeoutMillis, int maxRetransmissions) {
+        this.channel = channel;
+        this.protocol = protocol;
+        this.connections = connections;
+        this.timeoutNanos = timeoutMillis * 1_000_000;
+        this.maxRetransmissions = maxRetransmissions;
+        deadline = System.nanoTime() + timeoutNanos;
+    }
+
+    /**
+     * Logs the transfer in as 'username' and processes its request - RRQ or WRQ, in the protocol's format.
+     * A client that sent its request again while its first request is served is already logged in - the
+     * second transfer ends without an answer.
+     */
+    void start(String username, byte[] request) {
+        this.username = username;
+        connectionId = connections.getNewConnectionId();
+        protocol.start(connectionId, connections);
+        connections.connect(connectionId, this);
+
+        byte[] encodedUsername = username.getBytes(StandardCharsets.UTF_8);
+        byte[] login = new byte[3 + encodedUsername.length];
+        login[1] = 7; //LOGRQ OP_CODE
+        System.arraycopy(encodedUsername, 0, login, 2, encodedUsername.length);
+        discardSends = true;
+        protocol.process(login);
+        discardSends = false;
+
+        if (!connections.isLoggedIn(connectionId)) {
+            Log.debug("Client " + username + " sent its request again - it is served by its first transfer");
+            finish();
+            return;
+        }
+        process(request);
+    }
+
+    /**
+     * Handles a datagram the client sent to the transfer's port.
+     */
+    void receive(ByteBuffer datagram) {
+        connections.touch(connectionId);
+        if (datagram.remaining() < 4) //Shorter than any packet of a transfer
+            return;
+
+        int opcode = datagram.getShort(0) & 0xffff;
+        if (opcode == 3) { //The size field of the protocol's DATA packets is added
+            int dataSize = datagram.remaining() - 4;
+            byte[] packet = new byte[DATA_HEADER_SIZE + dataSize];
+            packet[1] = 3;
+            packet[2] = (byte) (dataSize >> 8);
+            packet[3] = (byte) dataSize;
+            datagram.position(2);
+            datagram.get(packet, 4, 2 + dataSize);
+            boolean answered = process(packet);
+            if (dataSize < BLOCK_SIZE && answered && !errorSent && !completed) { //The last block was acknowledged
+                completed = true;
+                unanswered = new ArrayList<>();
+                deadline = System.nanoTime() + timeoutNanos * maxRetransmissions; //Waits for its DATA to be sent again
+            }
+        }
+        else if (opcode == 4) {
+            byte[] packet = new byte[4];
+            datagram.get(packet);
+            process(packet);
+            if (lastDataBlock >= 0 && ((packet[2] & 0xff) << 8 | (packet[3] & 0xff)) == lastDataBlock)
+                finish(); //The last block of the download was received
+        }
+        else if (opcode == 5) {
+            Log.info("Client " + username + " stopped the transfer (ERROR " + (datagram.getShort(2) & 0xffff) + ")");
+            finish();
+        }
+        //Other packets are not a part of a transfer - ignored
+    }
+
+    /**
+     * Checks the timeout of the transfer: sends the unanswered datagrams again, or ends the transfer once they
+     * were sent too many times (or once an upload was completed and its client has not sent its last DATA again).
+     */
+    void tick(long now) {
+        if (closeRequested) {
+            finish();
+            return;
+        }
+        if (finished || now - deadline < 0)
+            return;
+
+        if (completed || unanswered.isEmpty() || retransmissions == maxRetransmissions) {
+            if (!completed)
+                Log.warn("Client " + username + " does not answer - the transfer is stopped");
+            finish();
+            return;
+        }
+
+        retransmissions++;
+        if (Log.isEnabled(Log.Level.DEBUG))
+            Log.debug("Client " + username + " has not answered - sending " + unanswered.size() + " datagrams again");
+        for (ByteBuffer datagram : unanswered)
+            write(datagram.rewind());
+        deadline = now + timeoutNanos;
+    }
+
+    /**
+     * Closes the transfer's port - the protocol releases the files of an unfinished transfer. The part of an
+     * unfinished upload is deleted - the client sends its next request from another port, as another user, so it
+     * could never resume it.
+     */
+    void finish() {
+        if (finished)
+            return;
+
+        finished = true;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        connections.disconnect(connectionId);
+        protocol.connectionClosed(false);
+    }
+
+    /**
+     * Ends the transfer on the thread of the UDP server (called by the idle sessions reaper).
+     */
+    @Override
+    public void close() {
+        closeRequested = true;
+    }
+
+    @Override
+    public void send(byte[] msg) {
+        transmit(msg, null);
+    }
+
+    /**
+     * Broadcasts are not sent - classic clients do not know them.
+     */
+    @Override
+    public boolean offer(byte[] msg) {
+        return true;
+    }
+
+    @Override
+    public void sendFileRegion(byte[] header, FileChannel file, long position, long count) {
+        ByteBuffer region = ByteBuffer.allocate((int) count);
+        try {
+            while (region.hasRemaining() && file.read(region, position + region.position()) >= 0) {
+                //Read until the region is complete or the file has ended
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        transmit(header, region.flip());
+    }
+
+    @Override
+    public void send(byte[] header, ByteBuffer data) {
+        transmit(header, data);
+    }
+
+    //=================================HELPER METHODS==================================
+
+    // Processes a packet of the client - the datagrams the protocol sends in response are the ones sent again on a timeout
+    // Returns true if the protocol sent any
+    private boolean process(byte[] packet) {
+        protocol.process(packet);
+
+        boolean answered = !sentNow.isEmpty();
+        if (answered) {
+            unanswered = completed ? new ArrayList<>() : sentNow;
+            sentNow = new ArrayList<>();
+            retransmissions = 0;
+            if (!completed)
+                deadline = System.nanoTime() + timeoutNanos;
+        }
+        if (errorSent) //An ERROR ends the transfer, it is never sent again
+            finish();
+        return answered;
+    }
+
+    // Translates a packet of the protocol (followed by 'data', if it is not null) to a datagram, and sends it
+    private void transmit(byte[] packet, ByteBuffer data) {
+        if (discardSends || finished)
+            return;
+
+        int opcode = packet[1];
+        ByteBuffer datagram;
+        if (opcode == 3) { //Without the size field
+            int dataSize = packet.length - DATA_HEADER_SIZE + (data != null ? data.remaining() : 0);
+            datagram = ByteBuffer.allocate(4 + dataSize);
+            datagram.put(packet, 0, 2).put(packet, 4, packet.length - 4);
+            if (data != null)
+                datagram.put(data.duplicate()); //The protocol reuses its views of the data sections
+            lastDataBlock = dataSize < BLOCK_SIZE ? (packet[4] & 0xff) << 8 | (packet[5] & 0xff) : -1;
+        }
+        else if (opcode == 4 || opcode == 5) { //Copied - the protocol reuses its ACK packets
+            datagram = ByteBuffer.allocate(packet.length).put(packet);
+            errorSent |= opcode == 5;
+        }
+        else
+            return; //OACK, BCAST, FILE - classic clients do not know them
+
+        datagram.flip();
+        write(datagram);
+        sentNow.add(datagram);
+    }
+
+    private void write(ByteBuffer datagram) {
+        try {
+            channel.write(datagram); //A datagram that does not fit in the socket's buffer is lost - and sent again
+        } catch (IOException ex) { //The client's port is closed (ICMP port unreachable)
+            Log.debug("Client " + username + " is unreachable - " + ex.getMessage());
+            closeRequested = true;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates a file while it is downloaded - used for the downloads whose deflated form is not cached
+ * (files too large to be cached, and resumed downloads that start in the middle of the file).
+ * The file is read in chunks with positional reads, only a chunk of it is in memory at a time - up to the end of
+ * the range that is downloaded.
+ * Compresses with the fastest level - the cached forms are compressed once, these for every download.
+ */
+final class DeflatedFileStream {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final FileChannel file;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    private long position; //The position in the file of the next chunk to read
+    private final long end; //The position in the file after the last byte that is deflated
+    private boolean endOfFile = false;
+    private final MessageDigest digest; //Updated with the bytes of the file that are read, null if they are not hashed
+
+    /**
+     * @param position - the first byte of the file that is deflated
+     * @param end - the position after the last byte of the file that is deflated
+     * @param digest - updated with the (uncompressed) bytes of the file as they are read, null to not hash them
+     */
+    DeflatedFileStream(FileChannel file, long position, long end, MessageDigest digest) {
+        this.file = file;
+        this.position = position;
+        this.end = end;
+        this.digest = digest;
+    }
+
+    /**
+     * Fills the remaining bytes of 'destination' with the deflated data that follows the previous read.
+     * @return the number of bytes written - less than the remaining bytes only at the end of the stream
+     */
+    int read(ByteBuffer destination) throws IOException {
+        int start = destination.position();
+        while (destination.hasRemaining() && !deflater.finished()) {
+            if (deflater.needsInput() && !endOfFile) {
+                chunk.clear().limit((int) Math.min(CHUNK_SIZE, Math.max(0, end - position)));
+                int bytesRead = chunk.hasRemaining() ? file.read(chunk, position) : -1;
+                chunk.flip();
+                if (bytesRead < 0) {
+                    endOfFile = true;
+                    deflater.finish();
+                }
+                else {
+                    position += bytesRead;
+                    if (digest != null)
+                        digest.update(chunk.duplicate());
+                    deflater.setInput(chunk);
+                }
+            }
+            deflater.deflate(destination);
+        }
+        return destination.position() - start;
+    }
+
+    /**
+     * Releases the (native) memory of the deflater - the file is closed by its owner.
+     */
+    void close() {
+        deflater.end();
+    }
+
+    /**
+     * Deflates all of 'content' at once, with the default compression level.
+     * @return a read only buffer holding the deflated content
+     */
+    static ByteBuffer deflate(ByteBuffer content) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(content.duplicate());
+            deflater.finish();
+            ByteBuffer deflated = ByteBuffer.allocate(Math.max(content.remaining() / 2, CHUNK_SIZE));
+            while (!deflater.finished()) {
+                if (!deflated.hasRemaining()) { //Content that does not compress well
+                    deflated.flip();
+                    deflated = ByteBuffer.allocate(deflated.capacity() * 2).put(deflated);
+                }
+                deflater.deflate(deflated);
+            }
+            return ByteBuffer.wrap(Arrays.copyOf(deflated.array(), deflated.position())).asReadOnlyBuffer();
+        } finally {
+            deflater.end();
+        }
+    }
+}
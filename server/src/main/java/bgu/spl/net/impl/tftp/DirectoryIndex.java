@@ -0,0 +1,282 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import bgu.spl.net.srv.Log;
+
+/**
+ * An in memory index of the files in the server's directory, shared by all of the clients.
+ * The index is built once, and then kept up to date by the protocol (uploads and deletes) and by
+ * a watcher thread that notices changes made to the directory outside of the server.
+ * Files that are being uploaded are not listed until their upload is completed.
+ * The index also keeps the SHA-256 digests of the files that are known - computed while a file was uploaded or
+ * downloaded, and dropped whenever the file changes (a digest is kept with the size and modification time of its file,
+ * so the watcher's events of the server's own uploads do not drop it).
+ */
+public class DirectoryIndex {
+
+    //The digest of a file, and the attributes of the file it was computed from
+    private static final class Digest {
+        final byte[] value;
+        final long size;
+        final FileTime lastModified;
+
+        Digest(byte[] value, BasicFileAttributes attributes) {
+            this.value = value;
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime();
+        }
+
+        boolean isOf(BasicFileAttributes attributes) {
+            return attributes != null && size == attributes.size() && lastModified.equals(attributes.lastModifiedTime());
+        }
+    }
+
+    private final Path directory;
+    private final Consumer<String> onExternalChange;
+    private final NavigableSet<String> filenames = new TreeSet<>();
+    private final Set<String> filesBeingWritten = new HashSet<>();
+    private final Map<String, Digest> digests = new HashMap<>();
+    private long changes = 0; //Digests computed while a file changed must not be kept
+    private volatile byte[] listing = null; //The serialized filenames - null after every change
+
+    /**
+     * @param directory - the directory to index
+     * @param onExternalChange - called with the name of every file that was changed outside of the server
+     */
+    public DirectoryIndex(Path directory, Consumer<String> onExternalChange) throws IOException {
+        this.directory = directory;
+        this.onExternalChange = onExternalChange;
+        scan();
+    }
+
+    /**
+     * Starts a daemon thread that updates the index with the changes made to the directory outside of the server.
+     */
+    public void watch() throws IOException {
+        WatchService watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread watcher = new Thread(() -> watchLoop(watchService), "directory-index-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * @return the names of all of the files, each one followed by a zero byte
+     * (the data of a directory listing). The returned array must not be modified.
+     */
+    public byte[] listing() {
+        byte[] currentListing = listing;
+        if (currentListing == null) {
+            synchronized (this) {
+                if (listing == null)
+                    listing = serialize();
+                currentListing = listing;
+            }
+        }
+        return currentListing;
+    }
+
+    /**
+     * @return the names of the listed files that start with 'prefix', in the order of the listing
+     */
+    public synchronized List<String> startingWith(String prefix) {
+        List<String> matchingFilenames = new ArrayList<>();
+        for (String filename : filenames.tailSet(prefix, true)) {
+            if (!filename.startsWith(prefix))
+                break;
+            matchingFilenames.add(filename);
+        }
+        return matchingFilenames;
+    }
+
+    /**
+     * Marks 'filename' as being uploaded - it is not listed until {@link #finishWriting(String)} is called.
+     * Must be called before the file is created.
+     * @return false if 'filename' is already being uploaded
+     */
+    public synchronized boolean startWriting(String filename) {
+        return filesBeingWritten.add(filename);
+    }
+
+    /**
+     * The upload of 'filename' was completed - it is listed, with the digest of its content.
+     */
+    public synchronized void finishWriting(String filename, byte[] digest) {
+        filesBeingWritten.remove(filename);
+        add(filename);
+        putDigest(filename, digest);
+    }
+
+    /**
+     * @return a new digest of the kind the index keeps - SHA-256
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) { //Every Java platform supports SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return the SHA-256 digest of 'filename', null if it is not known
+     */
+    public synchronized byte[] digest(String filename) {
+        Digest digest = digests.get(filename);
+        return digest != null ? digest.value : null;
+    }
+
+    /**
+     * @return a version of the files - it changes whenever a file is added, changed or deleted
+     */
+    public synchronized long version() {
+        return changes;
+    }
+
+    /**
+     * Keeps the digest of 'filename' that was computed from its content - unless a file changed since 'version'.
+     */
+    public synchronized void putDigest(String filename, byte[] digest, long version) {
+        if (changes == version && filenames.contains(filename))
+            putDigest(filename, digest);
+    }
+
+    /**
+     * The upload of 'filename' was not completed - the file is not listed.
+     */
+    public synchronized void abortWriting(String filename) {
+        filesBeingWritten.remove(filename);
+    }
+
+    public synchronized void remove(String filename) {
+        if (filenames.remove(filename))
+            listing = null;
+        changed(filename); //The file does not exist anymore - its digest is dropped
+    }
+
+    //=================================HELPER METHODS==================================
+
+    private synchronized void add(String filename) {
+        if (filenames.add(filename))
+            listing = null;
+        changed(filename);
+    }
+
+    //Drops the digest of 'filename' unless the file is still the one it was computed from
+    private synchronized void changed(String filename) {
+        changes++;
+        Digest digest = digests.remove(filename);
+        if (digest != null && digest.isOf(attributes(filename)))
+            digests.put(filename, digest);
+    }
+
+    private synchronized void putDigest(String filename, byte[] digest) {
+        BasicFileAttributes attributes = attributes(filename);
+        if (attributes != null)
+            digests.put(filename, new Digest(digest, attributes));
+    }
+
+    //The attributes of 'filename', null if it does not exist
+    private BasicFileAttributes attributes(String filename) {
+        try {
+            return Files.readAttributes(directory.resolve(filename), BasicFileAttributes.class);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private synchronized void scan() throws IOException {
+        filenames.clear();
+        digests.clear();
+        changes++;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String filename = file.getFileName().toString();
+                if (Files.isRegularFile(file) && !filesBeingWritten.contains(filename))
+                    filenames.add(filename);
+            }
+        }
+        listing = null;
+    }
+
+    private synchronized byte[] serialize() {
+        ByteArrayOutputStream serializedFilenames = new ByteArrayOutputStream();
+        for (String filename : filenames) {
+            byte[] filenameInBytes = filename.getBytes(StandardCharsets.UTF_8);
+            serializedFilenames.write(filenameInBytes, 0, filenameInBytes.length);
+            serializedFilenames.write(0);
+        }
+        return serializedFilenames.toByteArray();
+    }
+
+    private synchronized boolean isBeingWritten(String filename) {
+        return filesBeingWritten.contains(filename);
+    }
+
+    private void watchLoop(WatchService watchService) {
+        try (WatchService service = watchService) {
+            while (true) {
+                WatchKey key = service.take();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) { //Some events were lost
+                        scan();
+                        for (String filename : filenamesSnapshot())
+                            onExternalChange.accept(filename);
+                        continue;
+                    }
+
+                    String filename = event.context().toString();
+                    if (isBeingWritten(filename)) //Changes made by an upload of the server itself
+                        continue;
+
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                        remove(filename);
+                    else if (Files.isRegularFile(directory.resolve(filename)))
+                        add(filename); //A changed file drops its digest as well
+                    onExternalChange.accept(filename);
+                }
+
+                if (!key.reset()) {
+                    Log.warn("The directory " + directory + " is no longer watched");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            //do nothing - the watcher was requested to stop
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private synchronized Set<String> filenamesSnapshot() {
+        return new HashSet<>(filenames);
+    }
+}
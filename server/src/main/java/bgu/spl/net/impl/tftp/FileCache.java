@@ -0,0 +1,194 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in memory cache of the contents of the server's files, shared by all of the clients.
+ * The cache holds at most 'byteBudget' bytes of file contents - once it is exceeded the least
+ * recently downloaded files are evicted. Files larger than a quarter of the budget are never cached,
+ * so that a single big download does not flush all of the popular files.
+ * The deflated forms of the files that are downloaded compressed are cached as well, in the same budget -
+ * a popular file is compressed once, not for every download.
+ * Entries must be invalidated whenever the file on the disk changes (deleted/uploaded).
+ * With a blob store the files that share a blob share their entries - the content is cached once, under its digest.
+ */
+public class FileCache {
+
+    private static final String DEFLATED_SUFFIX = "\0deflate"; //The key of the deflated form - file names never hold a zero
+
+    private final Path directory;
+    private final long byteBudget;
+    private final long maxFileSize;
+    private final BlobStore blobStore; //null if every file is cached by its name
+
+    private final LinkedHashMap<String, ByteBuffer> contents = new LinkedHashMap<>(16, 0.75f, true); //Access order - LRU first
+    private long cachedBytes = 0;
+    private long invalidations = 0; //Loads that started before an invalidation must not be cached
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param directory - the directory the files are stored in
+     * @param byteBudget - maximal number of bytes held in memory, zero disables the cache
+     */
+    public FileCache(Path directory, long byteBudget) {
+        this(directory, byteBudget, null);
+    }
+
+    /**
+     * @param blobStore - the files that share a blob are cached once (null caches every file by its name)
+     */
+    public FileCache(Path directory, long byteBudget, BlobStore blobStore) {
+        this.directory = directory;
+        this.byteBudget = byteBudget;
+        this.maxFileSize = byteBudget / 4;
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Returns the content of 'filename' - from memory if it is cached, otherwise the file is
+     * read and cached if it fits in the cache.
+     * @return a read only buffer holding the whole file, or null if the file is too large to be cached
+     * @throws IOException if the file does not exist or could not be read
+     */
+    public ByteBuffer get(String filename) throws IOException {
+
+        String key = keyOf(filename);
+        long invalidationsBeforeLoad;
+        synchronized (this) {
+            ByteBuffer content = cached(key);
+            if (content != null)
+                return content;
+            invalidationsBeforeLoad = invalidations;
+        }
+
+        Path path = directory.resolve(filename);
+        if (byteBudget == 0 || Files.size(path) > maxFileSize)
+            return null;
+
+        //Read outside of the lock - other clients are served from the cache meanwhile
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(path)).asReadOnlyBuffer();
+        if (content.capacity() > maxFileSize) //The file has grown since its size was checked
+            return null;
+
+        put(key, content, invalidationsBeforeLoad);
+        return content.duplicate();
+    }
+
+    /**
+     * Returns the deflated content of 'filename' - from memory if it is cached, otherwise the file is
+     * read (or taken from the cache) and deflated, and its deflated form is cached. The content itself is
+     * not cached by this method - a file that is only downloaded compressed takes only its deflated size.
+     * @return a read only buffer holding the whole deflated file, or null if the file is too large to be cached
+     * @throws IOException if the file does not exist or could not be read
+     */
+    public ByteBuffer getDeflated(String filename) throws IOException {
+
+        String key = keyOf(filename);
+        long invalidationsBeforeLoad;
+        ByteBuffer content;
+        synchronized (this) {
+            ByteBuffer deflated = cached(key + DEFLATED_SUFFIX);
+            if (deflated != null)
+                return deflated;
+            invalidationsBeforeLoad = invalidations;
+            content = contents.get(key);
+        }
+
+        Path path = directory.resolve(filename);
+        if (content == null) {
+            if (byteBudget == 0 || Files.size(path) > maxFileSize)
+                return null;
+            content = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (content.capacity() > maxFileSize)
+                return null;
+        }
+
+        //Compressed outside of the lock - other clients are served from the cache meanwhile
+        ByteBuffer deflated = DeflatedFileStream.deflate(content);
+        if (deflated.capacity() <= maxFileSize)
+            put(key + DEFLATED_SUFFIX, deflated, invalidationsBeforeLoad);
+        return deflated.duplicate();
+    }
+
+    /**
+     * Removes 'filename' from the cache - must be called after the file was deleted or written.
+     * The entries of a blob are kept (a blob never changes) - loads that started before are not cached.
+     */
+    public synchronized void invalidate(String filename) {
+        invalidations++;
+        ByteBuffer content = contents.remove(filename);
+        if (content != null)
+            cachedBytes -= content.capacity();
+        ByteBuffer deflated = contents.remove(filename + DEFLATED_SUFFIX);
+        if (deflated != null)
+            cachedBytes -= deflated.capacity();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + getHits() + ", misses: " + getMisses() + ", cached bytes: " + getCachedBytes() + "/" + byteBudget;
+    }
+
+    /**
+     * @return the key of the entries of 'filename' - its content key if it is stored in a blob
+     */
+    private String keyOf(String filename) {
+        return blobStore != null ? blobStore.contentKey(filename) : filename;
+    }
+
+    /**
+     * @return a duplicate of the cached entry of 'key' (counted as a hit), null if it is not cached (counted as a miss)
+     */
+    private ByteBuffer cached(String key) {
+        ByteBuffer content = contents.get(key);
+        if (content == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return content.duplicate();
+    }
+
+    /**
+     * Caches 'content' under 'key' - unless the file was invalidated since it was read, or another client cached it meanwhile.
+     */
+    private synchronized void put(String key, ByteBuffer content, long invalidationsBeforeLoad) {
+        if (invalidations == invalidationsBeforeLoad && !contents.containsKey(key)) {
+            contents.put(key, content);
+            cachedBytes += content.capacity();
+            evict();
+        }
+    }
+
+    /**
+     * Removes the least recently used files until the cached bytes fit in the budget.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, ByteBuffer>> leastRecentlyUsed = contents.entrySet().iterator();
+        while (cachedBytes > byteBudget && leastRecentlyUsed.hasNext()) {
+            cachedBytes -= leastRecentlyUsed.next().getValue().capacity();
+            leastRecentlyUsed.remove();
+        }
+    }
+}
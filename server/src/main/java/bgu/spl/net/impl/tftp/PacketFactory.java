@@ -0,0 +1,215 @@
+package bgu.spl.net.impl.tftp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the packets that the server sends.
+ * The ERROR packets and ACK 0 never change - they are encoded once and shared by all of the connections.
+ * The DATA headers and ACKs of a transfer are written into send buffers of the connection that are reused,
+ * so that a transfer in progress creates no garbage. A buffer is reused only after the client has received
+ * the packet it held:
+ * - The header (and the data section view) of DATA block n (with or without a checksum) is reused by block n + RING_SIZE, which is sent only once
+ *   a block at or after n was acknowledged - the window is never larger than RING_SIZE.
+ * - The ACK of block n is reused by the ACK of block n + 2. The client sends that block only after it
+ *   received the ACK of block n + 1, which is sent after the ACK of block n.
+ * A client that acknowledges blocks it has not received yet (or does not wait for the ACKs of its uploaded blocks)
+ * may receive a packet whose buffer was already reused - it breaks only its own transfer.
+ */
+final class PacketFactory {
+
+    private static final int DATA_HEADER_SIZE = 6;
+    static final int CHECKSUM_SIZE = 4; //CRC32C of the data section, between the block number and the data of a checksummed DATA packet
+    private static final int RING_SIZE = TftpProtocol.MAX_WINDOW_SIZE; //A power of 2
+    private static final int ACK_RING_SIZE = 2; //Uploads are acknowledged packet by packet
+
+    private static final String[] ERROR_MESSAGES = {
+        "Not defined",
+        "File not found",
+        "Access voilation",
+        "Disk full or allocation exceeded",
+        "Illegal TFTP operation",
+        "File already exists",
+        "User not logged in",
+        "User already logged in",
+        "Option negotiation failed",
+        "Checksum mismatch"
+    };
+    private static final byte[][] ERROR_PACKETS = new byte[ERROR_MESSAGES.length][];
+    static final byte[] ACK_0 = { 0, 4, 0, 0 };
+
+    static {
+        for (int errorCode = 0; errorCode < ERROR_MESSAGES.length; errorCode++) {
+            byte[] messageInBytes = ERROR_MESSAGES[errorCode].getBytes(StandardCharsets.UTF_8);
+            byte[] errorPacket = new byte[messageInBytes.length + 5]; //Opcode, error code, message and its terminating zero
+            errorPacket[1] = 5; //ERROR OP_CODE
+            errorPacket[3] = (byte) errorCode;
+            System.arraycopy(messageInBytes, 0, errorPacket, 4, messageInBytes.length);
+            ERROR_PACKETS[errorCode] = errorPacket;
+        }
+    }
+
+    //The send buffers are allocated once the connection starts its first transfer
+    private byte[][] dataHeaders;
+    private byte[][] checksummedDataHeaders;
+    private ByteBuffer[] dataSections;
+    private ByteBuffer[] dataSectionContents; //The buffer every data section is a view of
+    private byte[][] acks;
+
+    /**
+     * @return the (shared) ERROR packet of 'errorCode'
+     */
+    static byte[] error(int errorCode) {
+        return ERROR_PACKETS[errorCode];
+    }
+
+    /**
+     * @return the header of DATA block 'blockNumber' (only its lower 16 bits are sent), the data section is sent after it
+     */
+    byte[] dataHeader(int blockNumber, int dataSectionSize) {
+        if (dataHeaders == null)
+            dataHeaders = new byte[RING_SIZE][];
+
+        int slot = blockNumber & (RING_SIZE - 1);
+        byte[] dataHeader = dataHeaders[slot];
+        if (dataHeader == null) {
+            dataHeader = new byte[DATA_HEADER_SIZE];
+            dataHeader[1] = 3; //DATA OP_CODE
+            dataHeaders[slot] = dataHeader;
+        }
+
+        dataHeader[2] = (byte) (dataSectionSize >> 8); //Packet size - 2 bytes
+        dataHeader[3] = (byte) dataSectionSize;
+        dataHeader[4] = (byte) (blockNumber >> 8); //Block number - 2 bytes
+        dataHeader[5] = (byte) blockNumber;
+        return dataHeader;
+    }
+
+    /**
+     * @return the header of a checksummed DATA block - the size field counts the checksum as a part of the data section
+     */
+    byte[] dataHeader(int blockNumber, int dataSectionSize, int checksum) {
+        if (checksummedDataHeaders == null)
+            checksummedDataHeaders = new byte[RING_SIZE][];
+
+        int slot = blockNumber & (RING_SIZE - 1);
+        byte[] dataHeader = checksummedDataHeaders[slot];
+        if (dataHeader == null) {
+            dataHeader = new byte[DATA_HEADER_SIZE + CHECKSUM_SIZE];
+            dataHeader[1] = 3; //DATA OP_CODE
+            checksummedDataHeaders[slot] = dataHeader;
+        }
+
+        int packetSize = dataSectionSize + CHECKSUM_SIZE;
+        dataHeader[2] = (byte) (packetSize >> 8);
+        dataHeader[3] = (byte) packetSize;
+        dataHeader[4] = (byte) (blockNumber >> 8);
+        dataHeader[5] = (byte) blockNumber;
+        dataHeader[6] = (byte) (checksum >> 24);
+        dataHeader[7] = (byte) (checksum >> 16);
+        dataHeader[8] = (byte) (checksum >> 8);
+        dataHeader[9] = (byte) checksum;
+        return dataHeader;
+    }
+
+    /**
+     * @return a view of 'size' bytes of 'content' from 'position' - the data section of DATA block 'blockNumber'
+     */
+    ByteBuffer dataSection(ByteBuffer content, int blockNumber, int position, int size) {
+        if (dataSections == null) {
+            dataSections = new ByteBuffer[RING_SIZE];
+            dataSectionContents = new ByteBuffer[RING_SIZE];
+        }
+
+        int slot = blockNumber & (RING_SIZE - 1);
+        ByteBuffer dataSection = dataSections[slot];
+        if (dataSectionContents[slot] != content) { //A view of the content of an earlier transfer
+            dataSection = content.duplicate();
+            dataSections[slot] = dataSection;
+            dataSectionContents[slot] = content;
+        }
+
+        dataSection.limit(position + size).position(position);
+        return dataSection;
+    }
+
+    /**
+     * Drops the views of the data sections of the last transfer - they would keep its content (a file that may
+     * already be evicted from the cache) in memory.
+     */
+    void releaseDataSections() {
+        dataSections = null;
+        dataSectionContents = null;
+    }
+
+    /**
+     * @return the ACK of an uploaded DATA block
+     */
+    byte[] ack(int blockNumber) {
+        if (acks == null)
+            acks = new byte[ACK_RING_SIZE][];
+
+        int slot = blockNumber & (ACK_RING_SIZE - 1);
+        byte[] ack = acks[slot];
+        if (ack == null) {
+            ack = new byte[4];
+            ack[1] = 4; //ACK OP_CODE
+            acks[slot] = ack;
+        }
+
+        ack[2] = (byte) (blockNumber >> 8);
+        ack[3] = (byte) blockNumber;
+        return ack;
+    }
+
+    static byte[] optionAck(String optionName, String optionValue) {
+        byte[] nameInBytes = optionName.getBytes(StandardCharsets.UTF_8);
+        byte[] valueInBytes = optionValue.getBytes(StandardCharsets.UTF_8);
+        byte[] OACKPacket = new byte[nameInBytes.length + valueInBytes.length + 4];
+        OACKPacket[1] = 12; //OACK OP_CODE
+        System.arraycopy(nameInBytes, 0, OACKPacket, 2, nameInBytes.length);
+        System.arraycopy(valueInBytes, 0, OACKPacket, nameInBytes.length + 3, valueInBytes.length);
+        return OACKPacket;
+    }
+
+    /**
+     * @return the FILE packet that starts the file 'filename' of a batch download - followed by the DATA blocks of the
+     * file if 'errorCode' is 0, otherwise the file is skipped. An empty 'filename' ends the batch.
+     */
+    static byte[] file(String filename, int errorCode, long fileSize) {
+        byte[] filenameInBytes = filename.getBytes(StandardCharsets.UTF_8);
+        byte[] sizeInBytes = Long.toString(fileSize).getBytes(StandardCharsets.US_ASCII);
+        byte[] FILEPacket = new byte[filenameInBytes.length + sizeInBytes.length + 6];
+        FILEPacket[1] = 14; //FILE OP_CODE
+        FILEPacket[2] = (byte) (errorCode >> 8);
+        FILEPacket[3] = (byte) errorCode;
+        System.arraycopy(filenameInBytes, 0, FILEPacket, 4, filenameInBytes.length);
+        System.arraycopy(sizeInBytes, 0, FILEPacket, filenameInBytes.length + 5, sizeInBytes.length);
+        return FILEPacket;
+    }
+
+    /**
+     * @return the DIGEST packet of a transferred file - its digest with 'algorithm', in hex
+     */
+    static byte[] digest(String algorithm, String hexDigest) {
+        byte[] algorithmInBytes = algorithm.getBytes(StandardCharsets.US_ASCII);
+        byte[] digestInBytes = hexDigest.getBytes(StandardCharsets.US_ASCII);
+        byte[] DIGESTPacket = new byte[algorithmInBytes.length + digestInBytes.length + 4];
+        DIGESTPacket[1] = 15; //DIGEST OP_CODE
+        System.arraycopy(algorithmInBytes, 0, DIGESTPacket, 2, algorithmInBytes.length);
+        System.arraycopy(digestInBytes, 0, DIGESTPacket, algorithmInBytes.length + 3, digestInBytes.length);
+        return DIGESTPacket;
+    }
+
+    /**
+     * @param deleted_added - 0 indicates deleted file, 1 indicates added file
+     */
+    static byte[] broadcast(String filename, byte deleted_added) {
+        byte[] filenameAsBytes = filename.getBytes(StandardCharsets.UTF_8);
+        byte[] BCASTPacket = new byte[filenameAsBytes.length + 4];
+        BCASTPacket[1] = 9; //BCAST OP_CODE
+        BCASTPacket[2] = deleted_added;
+        System.arraycopy(filenameAsBytes, 0, BCASTPacket, 3, filenameAsBytes.length);
+        return BCASTPacket;
+    }
+}
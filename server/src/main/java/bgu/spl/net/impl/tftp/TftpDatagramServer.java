@@ -0,0 +1,172 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.Log;
+
+/**
+ * Serves classic TFTP clients (RFC 1350) over UDP - read and write requests with 512-byte blocks, in octet mode
+ * (netascii files are sent as they are). The requests arrive at the server's port, and every transfer is answered
+ * from a port of its own (its TID), so the datagrams of other clients never reach it.
+ * The transfers run the same TftpProtocol as the TCP clients, each one logged in as "udp:address:port", and share
+ * the file cache, directory index and connections of the TCP server. Options appended to a request (RFC 2347) are
+ * ignored, as RFC 2347 allows - the transfer runs with the RFC 1350 defaults, and its client falls back to them.
+ * <p>
+ * A single thread serves all of the transfers with a selector, and checks their timeouts between the datagrams.
+ */
+public class TftpDatagramServer implements Closeable {
+
+    private static final int MAX_DATAGRAM_SIZE = 1 << 16;
+
+    private final int port;
+    private final Supplier<TftpProtocol> protocolFactory;
+    private final Connections<byte[]> connections;
+    private final long timeoutMillis;
+    private final int maxRetransmissions;
+    private Selector selector;
+
+    /**
+     * @param timeoutMillis - time a transfer waits for its client before it sends its last datagrams again
+     * @param maxRetransmissions - times the datagrams are sent again before the transfer is stopped
+     */
+    public TftpDatagramServer(int port, Supplier<TftpProtocol> protocolFactory,
+                              Connections<byte[]> connections, long timeoutMillis, int maxRetransmissions) {
+        this.port = port;
+        this.protocolFactory = protocolFactory;
+        this.connections = connections;
+        this.timeoutMillis = timeoutMillis;
+        this.maxRetransmissions = maxRetransmissions;
+    }
+
+    /**
+     * The main loop of the server - receives the requests and the datagrams of the transfers.
+     */
+    public void serve() {
+        try (Selector selector = Selector.open();
+                DatagramChannel requests = DatagramChannel.open()) {
+
+            this.selector = selector; //just to be able to close
+
+            requests.bind(new InetSocketAddress(port));
+            requests.configureBlocking(false);
+            requests.register(selector, SelectionKey.OP_READ);
+            Log.info("UDP server started on port " + port);
+
+            ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+            long tickMillis = Math.max(timeoutMillis / 4, 1); //Timeouts are checked at least this often
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select(tickMillis);
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid())
+                        continue;
+
+                    datagram.clear();
+                    if (key.attachment() == null) {
+                        InetSocketAddress client = (InetSocketAddress) requests.receive(datagram);
+                        try {
+                            if (client != null)
+                                handleRequest(requests, client, datagram.flip());
+                        } catch (IOException ex) { //The transfer could not be started - the client sends its request again
+                            ex.printStackTrace();
+                        }
+                    }
+                    else
+                        handleTransferDatagram(key, datagram);
+                }
+                selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null)
+                        ((DatagramTransfer) key.attachment()).tick(now);
+                }
+            }
+
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+
+        Log.info("UDP server closed");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (selector != null)
+            selector.close();
+    }
+
+    //=================================HELPER METHODS==================================
+
+    /**
+     * Starts a transfer for a read/write request - | opcode | filename | 0 | mode | 0 | (options are ignored).
+     * Other packets (but ERROR), and requests in other modes, are answered with ERROR 4 from the server's port.
+     */
+    private void handleRequest(DatagramChannel requests, InetSocketAddress client, ByteBuffer datagram) throws IOException {
+        int opcode = datagram.remaining() >= 2 ? datagram.getShort(0) & 0xffff : -1;
+        if (opcode == 5) //Never answered - two servers would answer each other forever
+            return;
+        int filenameEnd = indexOfZero(datagram, 2);
+        int modeEnd = filenameEnd > 2 ? indexOfZero(datagram, filenameEnd + 1) : -1;
+        String mode = modeEnd > 0
+                ? new String(datagram.array(), filenameEnd + 1, modeEnd - filenameEnd - 1, StandardCharsets.US_ASCII).toLowerCase()
+                : "";
+
+        if ((opcode != 1 && opcode != 2) || (!mode.equals("octet") && !mode.equals("netascii"))) {
+            Log.debug("Client " + client + " sent an unsupported request (opcode " + opcode + ", mode '" + mode + "')");
+            requests.send(ByteBuffer.wrap(PacketFactory.error(4)), client);
+            return;
+        }
+
+        byte[] request = new byte[filenameEnd + 1]; //The opcode and the filename - the request of the protocol
+        datagram.get(request);
+
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(0)); //The transfer's TID - an ephemeral port
+            channel.connect(client); //Datagrams from other ports are dropped
+            channel.configureBlocking(false);
+            DatagramTransfer transfer = new DatagramTransfer(channel, protocolFactory.get(), connections, timeoutMillis, maxRetransmissions);
+            channel.register(selector, SelectionKey.OP_READ, transfer);
+            transfer.start("udp:" + client.getAddress().getHostAddress() + ":" + client.getPort(), request);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void handleTransferDatagram(SelectionKey key, ByteBuffer datagram) {
+        DatagramTransfer transfer = (DatagramTransfer) key.attachment();
+        try {
+            if (((DatagramChannel) key.channel()).read(datagram) >= 0)
+                transfer.receive(datagram.flip());
+        } catch (IOException ex) { //The client's port is closed (ICMP port unreachable)
+            Log.debug("A UDP transfer was stopped - " + ex.getMessage());
+            transfer.finish();
+        }
+    }
+
+    // Index of the first zero byte of 'datagram' from 'from', -1 if there is none
+    private static int indexOfZero(ByteBuffer datagram, int from) {
+        for (int i = from; i < datagram.limit(); i++) {
+            if (datagram.get(i) == 0)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -1,81 +1,182 @@
 package bgu.spl.net.impl.tftp;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 
+/**
+ * The array of a decoded ACK or DATA packet is reused by the next ACK/DATA packet (of the same length),
+ * so that a transfer in progress creates no garbage - a decoded packet must be processed before the next packet
+ * is decoded, and must not be kept.
+ */
 public class TftpEncoderDecoder implements MessageEncoderDecoder<byte[]> {
 
-    private List<Byte> bytes = new ArrayList<Byte>();
-    private short op_code = 0;
-    private boolean messageEndsWithZero = true;
-    private boolean messageEnded = false;
-    private short dataBytesLeft;
+    private static final int OP_CODE_LENGTH = 2;
+    private static final int DATA_HEADER_LENGTH = 6;
+    private static final int ACK_LENGTH = 4;
+
+    private byte[] bytes = new byte[1 << 8]; //Collects the header and the zero terminated packets
+    private int length = 0; //Number of bytes of the current packet received so far
+    private byte[] packet = null; //Once the packet length is known the bytes are collected directly in here
+    private int packetLength = -1; //-1 as long as the packet length is unknown
+    private boolean messageEndsWithZero = false;
+    private int stringBeginIndex; //The index the zero terminated section of the packet starts at
+    private int stringsLeft; //Number of zero terminated strings that were not completed yet
+    private boolean stringCountFollows; //BRRQ - the number of its strings is in the 2 bytes after the op code
+    private byte[] ackPacket = null; //Reused by all of the decoded ACK packets
+    private byte[] dataPacket = null; //Reused by the decoded DATA packets as long as their length does not change
 
     @Override
     public byte[] decodeNextByte(byte nextByte) {
 
-        bytes.add(nextByte);
+        append(nextByte);
 
-        if(bytes.size() == 2){
+        if(length == OP_CODE_LENGTH) {
+
+            short op_code = (short) ( (bytes[0] & 0xff) << 8 | (bytes[1] & 0xff) );
 
-            op_code = nextByte;
-        
             switch (op_code) {
-                case (byte) 1: messageEndsWithZero = true; break;
-                case (byte) 2: messageEndsWithZero = true; break;
-                case (byte) 3: messageEndsWithZero = false; break;
-                case (byte) 4: messageEndsWithZero = false; break;
-                case (byte) 5: break;
-                case (byte) 6: messageEnded = true; break; //2 byte packet
-                case (byte) 7: break;
-                case (byte) 8: messageEndsWithZero = true; break;
-                case (byte) 9: break;
-                case (byte) 10: messageEnded = true; break; //2 byte packet
-                default: break; //ERROR?
+                case 1: //RRQ
+                case 2: //WRQ
+                case 7: //LOGRQ
+                case 8: zeroTerminatedFrom(2, 1); break; //DELRQ
+                case 3: break; //DATA - length is known only after the packet size bytes
+                case 13: stringCountFollows = true; break; //BRRQ - number of filenames, then the filenames
+                case 4: knownLength(ACK_LENGTH, true); break; //ACK packet is 4-bytes long
+                case 5: zeroTerminatedFrom(4, 1); break; //ERROR - error code comes before the message
+                case 9: zeroTerminatedFrom(3, 1); break; //BCAST - deleted/added byte comes before the filename
+                case 11: //OPT
+                case 12: //OACK - option name and value
+                case 15: zeroTerminatedFrom(2, 2); break; //DIGEST - algorithm and digest
+                default: knownLength(2, false); break; //DIRQ, DISC and unknown op codes are 2-byte packets
             }
         }
 
-
-        //DATA packets length calculation
-        if(bytes.size() == 4 && op_code == 3) { 
-            //2-Bytes to short convertion
-            dataBytesLeft = (short) ( ( (short) bytes.get(2) ) << 8  | (short) (bytes.get(3)) );
+        if(length == 4 && stringCountFollows) {
+            stringCountFollows = false;
+            int numOfStrings = (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+            if(numOfStrings == 0)
+                return popPacket();
+            zeroTerminatedFrom(4, numOfStrings);
         }
 
-        if(bytes.size() > 6 && op_code == 3) { //Checking if DATA packet has ended, 
-            dataBytesLeft--;                    // and keeps track of received data length
-            if(dataBytesLeft == 0) 
-                messageEnded = true;                
+        //DATA packets length calculation - 2-bytes (unsigned) packet size after the op code
+        if(length == 4 && packetLength == -1 && !messageEndsWithZero) {
+            int dataSectionSize = (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+            knownLength(DATA_HEADER_LENGTH + dataSectionSize, true);
         }
 
-        //ACK packet ended
-        if(bytes.size() == 4 && op_code == 4) // ACK packet is 4-bytes long
-            messageEnded = true;
+        if(packetLength == length)
+            return popPacket();
+
+        if(messageEndsWithZero && length > stringBeginIndex && nextByte == 0 && --stringsLeft == 0)  // for RRQ, WRQ, LOGRQ, DELRQ, ERROR, BCAST, OPT, OACK termination
+            return popPacket();
+
+        return null;
+    }
 
+    /**
+     * Decodes whole sections of the buffer at once - once the header of a packet is known,
+     * the rest of it is copied with a single bulk copy instead of going byte by byte.
+     */
+    @Override
+    public byte[] decode(ByteBuffer buffer) {
 
-        if(messageEndsWithZero && bytes.size() > 1 && nextByte == 0)  // for RRQ, WRQ, LOGRQ, DELRQ termination
-            messageEnded = true;
+        while(buffer.hasRemaining()) {
 
-        if(messageEnded) {
-            
-            byte[] decodedMessage = new byte[bytes.size()];
-            for(int i = 0; i < bytes.size(); i++)
-                decodedMessage[i] = (byte) bytes.get(i);
-            
-            bytes.clear();
-            messageEnded = false;
-            //Other class variables does not require reset between messages
+            if(packet != null) { //Length is known - copy as much of the packet as available
+                int bytesToCopy = Math.min(buffer.remaining(), packetLength - length);
+                buffer.get(packet, length, bytesToCopy);
+                length += bytesToCopy;
+                if(length == packetLength)
+                    return popPacket();
+            }
 
-            return decodedMessage;
+            else if(messageEndsWithZero && length >= stringBeginIndex) { //Look for the terminating zero
+                int begin = buffer.position();
+                int end = begin;
+                while(end < buffer.limit() && buffer.get(end) != 0)
+                    end++;
+
+                boolean terminated = end < buffer.limit();
+                int bytesToCopy = (terminated ? end + 1 : end) - begin;
+                ensureCapacity(length + bytesToCopy);
+                buffer.get(bytes, length, bytesToCopy);
+                length += bytesToCopy;
+                if(terminated && --stringsLeft == 0)
+                    return popPacket();
+            }
+
+            else { //Still reading the header
+                byte[] message = decodeNextByte(buffer.get());
+                if(message != null)
+                    return message;
+            }
         }
 
         return null;
     }
 
     @Override
-    public byte[] encode(byte[] message) { 
+    public byte[] encode(byte[] message) {
+        TftpMetrics.get().packetOut(message);
         return message; //No conversion needed
     }
-}
\ No newline at end of file
+
+    //=================================HELPER METHODS==================================
+
+    private void append(byte nextByte) {
+        if(packet != null)
+            packet[length++] = nextByte;
+        else {
+            ensureCapacity(length + 1);
+            bytes[length++] = nextByte;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+    }
+
+    /**
+     * From now on the bytes of the current packet are collected in an array of the exact packet length
+     * @param reusable - true for ACK/DATA packets, whose arrays are reused
+     */
+    private void knownLength(int length, boolean reusable) {
+        packetLength = length;
+        packet = reusable ? reusablePacket(length) : new byte[length];
+        System.arraycopy(bytes, 0, packet, 0, this.length);
+    }
+
+    private byte[] reusablePacket(int length) {
+        if(length == ACK_LENGTH) {
+            if(ackPacket == null)
+                ackPacket = new byte[ACK_LENGTH];
+            return ackPacket;
+        }
+
+        if(dataPacket == null || dataPacket.length != length) //The last DATA packet of a transfer is shorter
+            dataPacket = new byte[length];
+        return dataPacket;
+    }
+
+    private void zeroTerminatedFrom(int index, int numOfStrings) {
+        messageEndsWithZero = true;
+        stringBeginIndex = index;
+        stringsLeft = numOfStrings;
+    }
+
+    private byte[] popPacket() {
+        byte[] decodedMessage = packet != null ? packet : Arrays.copyOf(bytes, length);
+
+        length = 0;
+        packet = null;
+        packetLength = -1;
+        messageEndsWithZero = false;
+
+        TftpMetrics.get().packetIn(decodedMessage);
+        return decodedMessage;
+    }
+}
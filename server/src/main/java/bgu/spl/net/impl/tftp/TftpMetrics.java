@@ -0,0 +1,250 @@
+package bgu.spl.net.impl.tftp;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import bgu.spl.net.srv.Log;
+
+/**
+ * Protocol level metrics, shared by all of the clients.
+ * Packets are counted by the encoder/decoder, transfers and ACK round-trips by the protocol.
+ * All of the counters are LongAdders so that the instrumentation does not add contention to the hot path.
+ */
+public final class TftpMetrics implements TftpMetricsMXBean {
+
+    private static final String[] OPCODE_NAMES = { "UNKNOWN", "RRQ", "WRQ", "DATA", "ACK", "ERROR", "DIRQ",
+                                                   "LOGRQ", "DELRQ", "BCAST", "DISC", "OPT", "OACK",
+                                                   "BRRQ", "FILE", "DIGEST" };
+    private static final int MAX_ERROR_CODE = 9;
+    private static final TftpMetrics INSTANCE = new TftpMetrics();
+
+    private final LongAdder[] packetsIn = newCounters(OPCODE_NAMES.length);
+    private final LongAdder[] packetsOut = newCounters(OPCODE_NAMES.length);
+    private final LongAdder[] bytesIn = newCounters(OPCODE_NAMES.length);
+    private final LongAdder[] bytesOut = newCounters(OPCODE_NAMES.length);
+    private final LongAdder[] errorsSent = newCounters(MAX_ERROR_CODE + 1);
+
+    private final LongAdder downloadsInProgress = new LongAdder();
+    private final LongAdder uploadsInProgress = new LongAdder();
+    private final LongAdder abortedTransfers = new LongAdder();
+    private final Durations downloads = new Durations();
+    private final Durations uploads = new Durations();
+    private final Durations ackRoundTrips = new Durations();
+
+    private TftpMetrics() {
+    }
+
+    public static TftpMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Publishes the metrics as an MBean named bgu.spl.net:type=Tftp.
+     */
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("bgu.spl.net:type=Tftp"));
+        } catch (JMException ex) {
+            Log.warn("Could not publish the TFTP metrics: " + ex.getMessage());
+        }
+    }
+
+    //=================================UPDATES==================================
+
+    void packetIn(byte[] packet) {
+        int opcode = opcodeIndex(packet);
+        packetsIn[opcode].increment();
+        bytesIn[opcode].add(packet.length);
+    }
+
+    /**
+     * A DATA packet may be sent as a header only (its data section is sent from a file) -
+     * its size is taken from the header.
+     */
+    void packetOut(byte[] packet) {
+        int opcode = opcodeIndex(packet);
+        packetsOut[opcode].increment();
+
+        if (opcode == 3 && packet.length >= 4)
+            bytesOut[opcode].add(6 + ((packet[2] & 0xff) << 8 | (packet[3] & 0xff)));
+        else
+            bytesOut[opcode].add(packet.length);
+
+        if (opcode == 5 && packet.length >= 4)
+            errorsSent[Math.min(packet[3] & 0xff, MAX_ERROR_CODE)].increment();
+    }
+
+    /**
+     * @return the start time of the download, to be passed to {@link #downloadCompleted(long)}
+     */
+    long downloadStarted() {
+        downloadsInProgress.increment();
+        return System.nanoTime();
+    }
+
+    void downloadCompleted(long startTime) {
+        downloadsInProgress.decrement();
+        downloads.record(System.nanoTime() - startTime);
+    }
+
+    long uploadStarted() {
+        uploadsInProgress.increment();
+        return System.nanoTime();
+    }
+
+    void uploadCompleted(long startTime) {
+        uploadsInProgress.decrement();
+        uploads.record(System.nanoTime() - startTime);
+    }
+
+    /**
+     * A transfer that ended without being completed (the connection was closed)
+     */
+    void transferAborted(boolean download) {
+        (download ? downloadsInProgress : uploadsInProgress).decrement();
+        abortedTransfers.increment();
+    }
+
+    void ackRoundTrip(long nanos) {
+        ackRoundTrips.record(nanos);
+    }
+
+    //=================================MBEAN ATTRIBUTES==================================
+
+    @Override
+    public Map<String, Long> getPacketsIn() {
+        return byOpcode(packetsIn);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsOut() {
+        return byOpcode(packetsOut);
+    }
+
+    @Override
+    public Map<String, Long> getBytesIn() {
+        return byOpcode(bytesIn);
+    }
+
+    @Override
+    public Map<String, Long> getBytesOut() {
+        return byOpcode(bytesOut);
+    }
+
+    @Override
+    public Map<String, Long> getErrorsSent() {
+        Map<String, Long> errors = new LinkedHashMap<>();
+        for (int code = 0; code < errorsSent.length; code++)
+            errors.put(Integer.toString(code), errorsSent[code].sum());
+        return errors;
+    }
+
+    @Override
+    public long getDownloadsInProgress() {
+        return downloadsInProgress.sum();
+    }
+
+    @Override
+    public long getUploadsInProgress() {
+        return uploadsInProgress.sum();
+    }
+
+    @Override
+    public long getCompletedDownloads() {
+        return downloads.count.sum();
+    }
+
+    @Override
+    public long getCompletedUploads() {
+        return uploads.count.sum();
+    }
+
+    @Override
+    public long getAbortedTransfers() {
+        return abortedTransfers.sum();
+    }
+
+    @Override
+    public double getAverageDownloadMillis() {
+        return downloads.average(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long getMaxDownloadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(downloads.max.get());
+    }
+
+    @Override
+    public double getAverageUploadMillis() {
+        return uploads.average(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long getMaxUploadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(uploads.max.get());
+    }
+
+    @Override
+    public long getAckRoundTrips() {
+        return ackRoundTrips.count.sum();
+    }
+
+    @Override
+    public double getAverageAckRoundTripMicros() {
+        return ackRoundTrips.average(TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public long getMaxAckRoundTripMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(ackRoundTrips.max.get());
+    }
+
+    //=================================HELPER METHODS==================================
+
+    private static int opcodeIndex(byte[] packet) {
+        if (packet.length < 2 || packet[0] != 0)
+            return 0;
+        int opcode = packet[1];
+        return opcode > 0 && opcode < OPCODE_NAMES.length ? opcode : 0;
+    }
+
+    private static Map<String, Long> byOpcode(LongAdder[] counters) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int opcode = 0; opcode < counters.length; opcode++)
+            values.put(OPCODE_NAMES[opcode], counters[opcode].sum());
+        return values;
+    }
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            counters[i] = new LongAdder();
+        return counters;
+    }
+
+    /**
+     * Number, total and maximum of measured durations (in nanoseconds)
+     */
+    private static final class Durations {
+        final LongAdder count = new LongAdder();
+        final LongAdder total = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        double average(TimeUnit unit) {
+            long measurements = count.sum();
+            return measurements == 0 ? 0 : (double) total.sum() / measurements / unit.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package bgu.spl.net.impl.tftp;
+
+import java.util.Map;
+
+/**
+ * The protocol level metrics of the server, as published over JMX (bgu.spl.net:type=Tftp).
+ * Durations are in milliseconds, ACK round-trip times in microseconds.
+ */
+public interface TftpMetricsMXBean {
+
+    /**
+     * @return the number of packets received, by opcode name
+     */
+    Map<String, Long> getPacketsIn();
+
+    Map<String, Long> getPacketsOut();
+
+    Map<String, Long> getBytesIn();
+
+    Map<String, Long> getBytesOut();
+
+    /**
+     * @return the number of ERROR packets sent, by error code
+     */
+    Map<String, Long> getErrorsSent();
+
+    long getDownloadsInProgress();
+
+    long getUploadsInProgress();
+
+    long getCompletedDownloads();
+
+    long getCompletedUploads();
+
+    long getAbortedTransfers();
+
+    double getAverageDownloadMillis();
+
+    long getMaxDownloadMillis();
+
+    double getAverageUploadMillis();
+
+    long getMaxUploadMillis();
+
+    long getAckRoundTrips();
+
+    double getAverageAckRoundTripMicros();
+
+    long getMaxAckRoundTripMicros();
+}
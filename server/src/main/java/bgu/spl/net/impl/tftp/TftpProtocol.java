@@ -1,43 +1,137 @@
 package bgu.spl.net.impl.tftp;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32C;
+import java.util.zip.ZipException;
 
 import bgu.spl.net.api.BidiMessagingProtocol;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.Log;
 
 public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
 
-    private static final int DATA_PACKET_MAX_SIZE = 512;
+    private static final int DATA_PACKET_MAX_SIZE = 512; //Default block size, directory listings always use it
     private static final int DATA_SECTION_BEGIN_INDEX = 6;
+    private static final int MIN_BLOCK_SIZE = 8; //Block size limits as in RFC 2348
+    private static final int MAX_BLOCK_SIZE = 65464;
+    static final int MAX_WINDOW_SIZE = 64; //Keeps the window well below half of the 16-bit block numbers range
+    private static final String BLOCK_SIZE_OPTION = "blksize";
+    private static final String WINDOW_SIZE_OPTION = "windowsize";
+    private static final String TRANSFER_SIZE_OPTION = "tsize";
+    private static final String OFFSET_OPTION = "offset";
+    private static final String LENGTH_OPTION = "length";
+    private static final String COMPRESSION_OPTION = "compress";
+    private static final String DEFLATE = "deflate"; //The only supported compression
+    private static final String NO_COMPRESSION = "none";
+    private static final String DIGEST_OPTION = "digest";
+    private static final String SHA_256 = "sha-256"; //The only supported digest
+    private static final String NO_DIGEST = "none";
+    //Blocks read from the disk to be checksummed - shared by the connections, one is taken by each such download
+    private static final ConcurrentLinkedQueue<ByteBuffer> checksumBlockPool = new ConcurrentLinkedQueue<>();
+    private static final String PARTIAL_UPLOADS_DIRECTORY = "Files.partial"; //Next to the Files directory (never served) - interrupted uploads are kept there, by user
 
     private boolean shouldTerminate;
     private int connectionId;
     private Connections<byte[]> connections;
-    private FileInputStream fileToDownloadFromServer;
-    private FileOutputStream fileToUploadToServer;
-    private short waitingForAckBlockNumber; //The ACK block number that the server is expecting.
-    private List<Byte> directoryListingData;
+    private final FileCache fileCache;
+    private final DirectoryIndex directoryIndex;
+    private final UploadWriter.Durability uploadDurability;
+    private final BlobStore blobStore; //null if uploaded files are stored as they are
+    private ByteBuffer cachedFileToDownload; //The content of the downloaded file if it is served from the cache
+    private FileChannel fileToDownloadFromServer; //Used when the downloaded file is too large to be cached
+    private DeflatedFileStream deflatedFileToDownload; //Used when a compressed download is deflated while it is sent
+    private ByteBuffer windowData; //The deflated data sections of the current window, by block number
+    private ByteBuffer checksumBlock; //The block read from the disk to compute its checksums - it is still sent from the file
+    private ArrayDeque<String> batchFilesToSend; //The files of the current batch download that were not started yet
+    private long downloadPosition; //The position in the file of the next DATA packet to send
+    private long downloadEnd; //The position in the file after the last byte to send (of a ranged download)
+    private boolean lastDataPacketSent; //True once a DATA packet shorter than the maximum size was sent
+    private UploadWriter fileToUploadToServer;
+    private int lastReceivedBlockNumber; //Of the current (or last) upload, its lower 16 bits - -1 before the first upload
+    private int lastSentBlockNumber; //Block numbers are counted without wrapping around -
+    private int lastAckedBlockNumber; // only their lower 16 bits are sent
+    private int blockSize; //Data section size of all DATA packets but the last one of the current transfer
+    private int requestedBlockSize; //The block size negotiated for the next read/write request
+    private int windowSize; //Number of DATA packets that may be sent before waiting for an ACK
+    private int requestedWindowSize; //The window size negotiated for the next read request
+    private boolean transferSizeRequested; //The size of the file of the next read request is sent (OACK) before its data
+    private long requestedOffset; //The byte offset the next read/write request resumes from, -1 if it starts from the beginning
+    private long requestedLength; //The number of bytes (from the offset) the next read request sends, -1 for the rest of the file
+    private String requestedCompression; //The compression asked for the next read/write request, null if none was asked for
+    private String requestedDigest; //The digest asked for the next read/write request, null if none was asked for
+    private boolean checksummed; //The DATA blocks of the current transfer carry their CRC32C, and the file's DIGEST precedes its last block
+    private final CRC32C blockChecksum = new CRC32C();
+    private byte[] downloadFileDigest; //Of the downloaded file - from the directory index, or once it was computed
+    private MessageDigest downloadDigest; //Computes the digest of the downloaded file while it is sent, null if it is known
+    private String downloadFileName;
+    private long directoryVersion; //When the download started - the digest it computes is kept only if no file changed since
+    private String expectedUploadDigest; //The digest of the uploaded file that its client sent (hex), null until it is received
+    private ByteBuffer directoryListingData; //The part of the directory listing that was not sent yet
     private boolean clientIsDownloading;
     private String uploadFileName;
+    private long transferStartTime; //Of the current download/upload, for the transfer duration metrics
+    private final long[] dataPacketSendTimes = new long[MAX_WINDOW_SIZE]; //By block number, for the ACK round-trip metrics
+    private final PacketFactory packets = new PacketFactory();
     private String username;
 
+    public TftpProtocol(FileCache fileCache, DirectoryIndex directoryIndex) {
+        this(fileCache, directoryIndex, UploadWriter.Durability.ACK_ON_BUFFER);
+    }
+
+    public TftpProtocol(FileCache fileCache, DirectoryIndex directoryIndex, UploadWriter.Durability uploadDurability) {
+        this(fileCache, directoryIndex, uploadDurability, null);
+    }
+
+    /**
+     * @param blobStore - stores the content of every upload once, shared by the files with the same content
+     *                  (null stores every uploaded file as it is)
+     */
+    public TftpProtocol(FileCache fileCache, DirectoryIndex directoryIndex, UploadWriter.Durability uploadDurability,
+                        BlobStore blobStore) {
+        this.fileCache = fileCache;
+        this.directoryIndex = directoryIndex;
+        this.uploadDurability = uploadDurability;
+        this.blobStore = blobStore;
+    }
+
     @Override
     public void start(int connectionId, Connections<byte[]> connections) {
         shouldTerminate = false;
         this.connectionId = connectionId;
         this.connections = connections;
-        waitingForAckBlockNumber = -1;
-        directoryListingData = new LinkedList<Byte>();
+        lastSentBlockNumber = 0;
+        lastAckedBlockNumber = 0;
+        blockSize = DATA_PACKET_MAX_SIZE;
+        requestedBlockSize = DATA_PACKET_MAX_SIZE;
+        windowSize = 1;
+        requestedWindowSize = 1;
+        transferSizeRequested = false;
+        requestedOffset = -1;
+        requestedLength = -1;
+        requestedCompression = null;
+        requestedDigest = null;
+        checksummed = false;
+        directoryListingData = null;
         clientIsDownloading = false;
         uploadFileName = null;
+        lastReceivedBlockNumber = -1;
     }
 
     @Override
@@ -47,8 +141,8 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
                                 // first of them is zero according to the instructions
 
         if(op_code != 7 && !connections.isLoggedIn(connectionId)) { //User not logged in and trying to make requests to server
-                connections.send(connectionId, errorPacket(6));
-                System.out.println("Unknown client is trying to reach the server (ERROR-6)");
+                connections.send(connectionId, PacketFactory.error(6));
+                Log.warn("Unknown client is trying to reach the server (ERROR-6)");
         }
 
         else {
@@ -56,24 +150,26 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
             switch (op_code) {
                 case 1: clientDownloadRequest(message); break;
                 case 2: clientUploadRequest(message); break;
-                case 3: writeNextDataPacketIntoFile(message);
+                case 3: writeNextDataPacketIntoFile(message); break;
                 case 4: ACKPacketHandling(message); break;
-                case 5: break;
+                case 5: transferStoppedByClient(message); break;
                 case 6: directoryList(); break; 
                 case 7: loginUser(message); break;
                 case 8: deleteFile(message); break;
                 case 9: break;
                 case 10: disconnectUser(); break;
-                default: connections.send(connectionId, errorPacket(4)); break;
+                case 11: optionNegotiation(message); break;
+                case 13: clientBatchDownloadRequest(message); break;
+                case 15: digestReceived(message); break;
+                default: connections.send(connectionId, PacketFactory.error(4)); break;
             } 
         }
     }
 
 
     /**
-     * Checks if the file 'message' exists - if it does breaks the file into DATA packets
-     * and add them to the dataPacketsForClient. Upon receiving of ACK packet from client
-     * the next DATA packet is sent.
+     * Checks if the file 'message' exists - if it does sends the first DATA packet of the file.
+     * Upon receiving of ACK packet from client the next DATA packet is sent.
      * @param message
      */
     private void clientDownloadRequest(byte[] message) {
@@ -81,21 +177,166 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
         byte[] filenameInBytes = Arrays.copyOfRange(message, 2, message.length - 1);
         String filename = new String(filenameInBytes , StandardCharsets.UTF_8);
 
-        System.out.println("Client " + username + " asks to download: " + filename);
+        Log.debug("Client " + username + " asks to download: " + filename);
+
+        blockSize = requestedBlockSize; //Options apply to the next request only
+        requestedBlockSize = DATA_PACKET_MAX_SIZE;
+        windowSize = requestedWindowSize;
+        requestedWindowSize = 1;
+        boolean sendTransferSize = transferSizeRequested;
+        transferSizeRequested = false;
+        long offset = requestedOffset;
+        requestedOffset = -1;
+        long length = requestedLength;
+        requestedLength = -1;
+        String compression = requestedCompression;
+        requestedCompression = null;
+        boolean deflate = DEFLATE.equalsIgnoreCase(compression);
+        String digestAlgorithm = requestedDigest;
+        requestedDigest = null;
+        checksummed = SHA_256.equalsIgnoreCase(digestAlgorithm) && length < 0; //A range is not a whole file - it has no digest
+
+        if(!isServedFileName(filename)) {
+            connections.send(connectionId, PacketFactory.error(2));
+            Log.warn("Client " + username + " asked to download " + filename + ", which is not a file of the server (ERROR-2)");
+            return;
+        }
 
+        ByteBuffer deflatedContent = null; //The cached deflated form of the whole file
+        batchFilesToSend = null;
+        directoryVersion = directoryIndex.version(); //Before the file is read
+        downloadFileDigest = checksummed ? directoryIndex.digest(filename) : null;
         try{
-            fileToDownloadFromServer = new FileInputStream("Files/" + filename);
+            //Unless its digest is known, the file is hashed while it is deflated - not taken deflated from the cache
+            if(deflate && offset <= 0 && length < 0 && (!checksummed || downloadFileDigest != null))
+                deflatedContent = fileCache.getDeflated(filename);
+            cachedFileToDownload = deflate ? null : fileCache.get(filename); //A compressed download never caches the file itself
+            fileToDownloadFromServer = null;
+            if(cachedFileToDownload == null)
+                fileToDownloadFromServer = FileChannel.open(Paths.get("Files", filename), StandardOpenOption.READ);
         }
-        catch(FileNotFoundException e){
-            connections.send(connectionId, errorPacket(1));
+        catch(IOException e){
+            connections.send(connectionId, PacketFactory.error(1));
             return;
         }
 
-        System.out.println("Client " + username + " starts downloading");
+        long fileSize;
+        try {
+            fileSize = cachedFileToDownload != null ? cachedFileToDownload.capacity() : fileToDownloadFromServer.size();
+        } catch(IOException e) {
+            fileSize = 0; //The download fails on its first DATA packet
+        }
+
+        if(sendTransferSize)
+            connections.send(connectionId, PacketFactory.optionAck(TRANSFER_SIZE_OPTION, Long.toString(fileSize)));
+        if(offset >= 0) { //A resumed download - the client has the bytes before the offset, block 1 starts at it
+            offset = Math.min(offset, fileSize);
+            connections.send(connectionId, PacketFactory.optionAck(OFFSET_OPTION, Long.toString(offset)));
+        }
+        long end = fileSize;
+        if(length >= 0) { //A ranged download - only the bytes from the offset to its end are sent
+            end = length < fileSize - Math.max(offset, 0) ? Math.max(offset, 0) + length : fileSize;
+            connections.send(connectionId, PacketFactory.optionAck(LENGTH_OPTION, Long.toString(end - Math.max(offset, 0))));
+        }
+
+        downloadDigest = null;
+        if(checksummed && downloadFileDigest == null) { //Hashed while it is sent - from the beginning of the file
+            downloadDigest = DirectoryIndex.newDigest();
+            try {
+                if(offset > 0)
+                    hashDownloadedFileUpTo(offset);
+            } catch(IOException e) {
+                e.printStackTrace();
+                checksummed = false;
+                downloadDigest = null;
+            }
+        }
+        downloadFileName = filename;
+
+        if(deflate && deflatedContent != null && deflatedContent.capacity() < fileSize) { //Its deflated form is sent as its content
+            closeFileToDownload();
+            cachedFileToDownload = deflatedContent;
+        }
+        else if(deflate && deflatedContent == null) { //Too large to be cached, or resumed - deflated while it is sent
+            deflatedFileToDownload = new DeflatedFileStream(fileToDownloadFromServer, Math.max(offset, 0), end, downloadDigest);
+            windowData = ByteBuffer.allocate(windowSize * blockSize);
+        }
+        else
+            deflate = false; //The file does not compress - it is sent as it is
+        if(compression != null)
+            connections.send(connectionId, PacketFactory.optionAck(COMPRESSION_OPTION, deflate ? DEFLATE : NO_COMPRESSION));
+        if(digestAlgorithm != null)
+            connections.send(connectionId, PacketFactory.optionAck(DIGEST_OPTION, checksummed ? SHA_256 : NO_DIGEST));
+        if(checksummed && deflatedFileToDownload == null && cachedFileToDownload == null) { //Sent from the file, read again to be checksummed
+            checksumBlock = checksumBlockPool.poll();
+            if(checksumBlock == null)
+                checksumBlock = ByteBuffer.allocateDirect(MAX_BLOCK_SIZE);
+        }
+
+        Log.info("Client " + username + " starts downloading " + filename + (cachedFileToDownload != null ? " from the cache" : "")
+                + (offset > 0 ? " from byte " + offset : "") + (length >= 0 ? " to byte " + end : "")
+                + (deflate ? " deflated (" + (cachedFileToDownload != null ? cachedFileToDownload.capacity() + "/" + fileSize + " bytes)" : "while it is sent)") : "")
+                + (checksummed ? " with checksums" : ""));
+        if(Log.isEnabled(Log.Level.DEBUG))
+            Log.debug("File cache - " + fileCache);
         
-        waitingForAckBlockNumber = 0;
+        lastSentBlockNumber = 0;
+        lastAckedBlockNumber = 0;
+        downloadPosition = Math.max(offset, 0); //The DATA packets are read from their position - nothing before it is read
+        downloadEnd = end;
+        lastDataPacketSent = false;
         clientIsDownloading = true;
-        sendNextFilePacket();
+        transferStartTime = TftpMetrics.get().downloadStarted();
+        sendNextFilePackets();
+    }
+
+
+    /**
+     * Sends the files that a batch read request names, one after the other - a name that ends with '*' names all of
+     * the files that start with it. Every file starts with a FILE packet (which reports the error of a file that
+     * cannot be read), and the batch ends with an empty FILE packet. All of the files share one sequence of block
+     * numbers and one window, so a file is started as soon as the previous one was sent - not once it was acknowledged.
+     * Only the block size and window size options apply to a batch.
+     */
+    private void clientBatchDownloadRequest(byte[] message) {
+
+        Set<String> filenames = new LinkedHashSet<>(); //In the order of the request, every file is sent once
+        int nameBeginIndex = 4; //After the op code and the number of names
+        for(int i = nameBeginIndex; i < message.length; i++) {
+            if(message[i] == 0) {
+                String name = new String(message, nameBeginIndex, i - nameBeginIndex, StandardCharsets.UTF_8);
+                if(name.endsWith("*"))
+                    filenames.addAll(directoryIndex.startingWith(name.substring(0, name.length() - 1)));
+                else if(!name.isEmpty())
+                    filenames.add(name);
+                nameBeginIndex = i + 1;
+            }
+        }
+
+        Log.debug("Client " + username + " asks to download a batch of " + filenames.size() + " files");
+
+        blockSize = requestedBlockSize; //Options apply to the next request only
+        requestedBlockSize = DATA_PACKET_MAX_SIZE;
+        windowSize = requestedWindowSize;
+        requestedWindowSize = 1;
+        transferSizeRequested = false;
+        requestedOffset = -1;
+        requestedLength = -1;
+        requestedCompression = null;
+        requestedDigest = null;
+        checksummed = false;
+
+        Log.info("Client " + username + " starts a batch download of " + filenames.size() + " files");
+
+        batchFilesToSend = new ArrayDeque<>(filenames);
+        cachedFileToDownload = null;
+        fileToDownloadFromServer = null;
+        lastSentBlockNumber = 0;
+        lastAckedBlockNumber = 0;
+        lastDataPacketSent = true; //No file was started yet
+        clientIsDownloading = true;
+        transferStartTime = TftpMetrics.get().downloadStarted();
+        sendNextFilePackets();
     }
 
 
@@ -104,152 +345,404 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
         byte[] filenameInBytes = Arrays.copyOfRange(message, 2, message.length - 1);
         String filename = new String(filenameInBytes , StandardCharsets.UTF_8);
 
-        System.out.println("Client " + username + " asks to upload: " + filename);
+        Log.debug("Client " + username + " asks to upload: " + filename);
+        blockSize = requestedBlockSize; //Options apply to the next request only
+        requestedBlockSize = DATA_PACKET_MAX_SIZE;
+        requestedWindowSize = 1; //Uploads are acknowledged packet by packet
+        transferSizeRequested = false;
+        long offset = requestedOffset;
+        requestedOffset = -1;
+        requestedLength = -1; //Uploads are never ranged
+        String compression = requestedCompression;
+        requestedCompression = null;
+        boolean deflate = DEFLATE.equalsIgnoreCase(compression);
+        String digestAlgorithm = requestedDigest;
+        requestedDigest = null;
+        checksummed = SHA_256.equalsIgnoreCase(digestAlgorithm);
+        expectedUploadDigest = null;
+
+        if(!isServedFileName(filename)) {
+            connections.send(connectionId, PacketFactory.error(2));
+            Log.warn("Client " + username + " asked to upload " + filename + ", which cannot be a file of the server (ERROR-2)");
+            return;
+        }
 
-        File fileToCreate = new File("Files/" + filename);
+        //Listed only once the upload is completed - fails if another client is uploading the same file
+        if(!directoryIndex.startWriting(filename)) {
+            connections.send(connectionId, PacketFactory.error(5));
+            Log.debug("File - " + filename + " - is already being uploaded");
+            return;
+        }
 
-        if(fileToCreate.exists()) {
-            connections.send(connectionId, errorPacket(5));
-            System.out.println("File - " + filename + " - does not exist in the server");
+        if(Files.exists(Paths.get("Files", filename))) {
+            directoryIndex.abortWriting(filename);
+            connections.send(connectionId, PacketFactory.error(5));
+            Log.debug("File - " + filename + " - already exists in the server");
+            return;
         }
-        else {
-            try {
-                fileToCreate.createNewFile();
-                fileToUploadToServer = new FileOutputStream(fileToCreate);
-            } catch(IOException e) { 
-                e.printStackTrace(); 
-            } 
-            uploadFileName = filename;
-            connections.send(connectionId, createACKPacket((short) 0));
-            System.out.println("Client " + username + " is uploading the file: " + filename);
+
+        //A resumed upload continues from the part of an interrupted upload of the file, as much of it as the client has
+        Path partialUpload = partialUploadOf(filename);
+        if(offset >= 0)
+            offset = Math.min(offset, UploadWriter.partialSize(partialUpload));
+
+        try {
+            fileToUploadToServer = new UploadWriter(partialUpload, uploadDurability, Math.max(offset, 0), deflate, blobStore);
+        } catch(IOException e) {
+            directoryIndex.abortWriting(filename);
+            connections.send(connectionId, PacketFactory.error(2));
+            e.printStackTrace();
+            return;
         }
+
+        uploadFileName = filename;
+        lastReceivedBlockNumber = 0;
+        transferStartTime = TftpMetrics.get().uploadStarted();
+        if(offset >= 0)
+            connections.send(connectionId, PacketFactory.optionAck(OFFSET_OPTION, Long.toString(offset)));
+        if(compression != null)
+            connections.send(connectionId, PacketFactory.optionAck(COMPRESSION_OPTION, deflate ? DEFLATE : NO_COMPRESSION));
+        if(digestAlgorithm != null)
+            connections.send(connectionId, PacketFactory.optionAck(DIGEST_OPTION, checksummed ? SHA_256 : NO_DIGEST));
+        connections.send(connectionId, PacketFactory.ACK_0);
+        Log.info("Client " + username + " is uploading the file: " + filename + (offset > 0 ? " from byte " + offset : "")
+                + (deflate ? " deflated" : "") + (checksummed ? " with checksums" : ""));
     }
 
+    /**
+     * Adds the data of the packet to the uploaded file and acknowledges it. The last block of the upload is
+     * acknowledged only after all of the file was written (and forced to the device, if so configured).
+     * If the file cannot be written the client gets an ERROR and the upload is aborted.
+     * A block that was already received (sent again over UDP, because its ACK was lost) is acknowledged again
+     * without being written - even after the upload was completed. Other unexpected blocks are ignored.
+     * The blocks of a checksummed upload are checked against their CRC32C as they arrive, and the whole file against
+     * the DIGEST its client sent before the last block - the last ACK is sent only if it matches (ERROR 9 otherwise).
+     */
     public void writeNextDataPacketIntoFile(byte[] packet) {
 
-        int dataSectionSize = packet.length - DATA_SECTION_BEGIN_INDEX;
+        int packetBlockNumber = (packet[4] & 0xff) << 8 | (packet[5] & 0xff);
+        if(packetBlockNumber == lastReceivedBlockNumber) {
+            connections.send(connectionId, packets.ack(packetBlockNumber));
+            return;
+        }
 
-        byte[] dataToWriteToFile = new byte[dataSectionSize];
+        if(uploadFileName == null || packetBlockNumber != ((lastReceivedBlockNumber + 1) & 0xffff)) //No upload in progress, or a block was lost
+            return;
+        lastReceivedBlockNumber = packetBlockNumber;
 
-        System.arraycopy(packet, DATA_SECTION_BEGIN_INDEX, dataToWriteToFile, 0 , dataSectionSize);
+        int dataSectionBegin = checksummed ? DATA_SECTION_BEGIN_INDEX + PacketFactory.CHECKSUM_SIZE : DATA_SECTION_BEGIN_INDEX;
+        int dataSectionSize = packet.length - dataSectionBegin;
+        boolean lastDataPacket = dataSectionSize < blockSize;
 
+        if(checksummed && (dataSectionSize < 0 || !checksumMatches(packet, dataSectionBegin, dataSectionSize))) {
+            Log.warn("Block " + packetBlockNumber + " of the upload of " + uploadFileName + " does not match its checksum");
+            connections.send(connectionId, PacketFactory.error(9));
+            abortUpload();
+            return;
+        }
+        if(lastDataPacket && checksummed && expectedUploadDigest == null) {
+            Log.warn("Client " + username + " did not send the digest of " + uploadFileName);
+            connections.send(connectionId, PacketFactory.error(9));
+            abortUpload();
+            return;
+        }
+
+        byte[] uploadedFileDigest = null;
         try {
-            fileToUploadToServer.write(dataToWriteToFile);
-            fileToUploadToServer.flush();
+            fileToUploadToServer.write(packet, dataSectionBegin, dataSectionSize);
+            if(lastDataPacket)
+                uploadedFileDigest = fileToUploadToServer.complete(Paths.get("Files", uploadFileName), expectedUploadDigest);
+        } catch(UploadWriter.DigestMismatchException e) { //The file is not the file that the client sent
+            Log.warn("Upload of " + uploadFileName + " failed - " + e.getMessage());
+            connections.send(connectionId, PacketFactory.error(9));
+            abortUpload();
+            return;
+        } catch(FileAlreadyExistsException e) { //Created outside of the server while it was uploaded
+            connections.send(connectionId, PacketFactory.error(5));
+            abortUpload();
+            return;
+        } catch(ZipException e) { //The DATA blocks of a compressed upload are not a valid deflate stream
+            Log.warn("Upload of " + uploadFileName + " failed - " + e.getMessage());
+            connections.send(connectionId, PacketFactory.error(4));
+            abortUpload();
+            return;
         } catch(IOException e) {
             e.printStackTrace();
+            connections.send(connectionId, PacketFactory.error(3));
+            abortUpload();
             return;
         }
 
-        short packetBlockNumber = (short) ( ((short) packet[4]) << 8 | (short) (packet[5]) & 0xff);
-        System.out.println("Block number " + packetBlockNumber + " received");
-        connections.send(connectionId, createACKPacket(packetBlockNumber));
+        if(Log.isEnabled(Log.Level.TRACE))
+            Log.trace("Block number " + packetBlockNumber + " received");
+        connections.send(connectionId, packets.ack(packetBlockNumber));
 
-        if(dataSectionSize < DATA_PACKET_MAX_SIZE) { //It means this is the last data packet
-            System.out.println("Upload of" + uploadFileName + " has completed");
+        if(lastDataPacket) {
+            Log.info("Upload of " + uploadFileName + " has completed");
+            if(blobStore != null && Log.isEnabled(Log.Level.DEBUG))
+                Log.debug("Blob store - " + blobStore);
+            fileCache.invalidate(uploadFileName);
+            directoryIndex.finishWriting(uploadFileName, uploadedFileDigest);
             broadcast(uploadFileName, (byte) 1);
             uploadFileName = null;
-            try {
-                fileToUploadToServer.close();
-            } catch(IOException ex) {
-                ex.printStackTrace();
-            }
+            fileToUploadToServer = null;
+            TftpMetrics.get().uploadCompleted(transferStartTime);
         }
     }
 
+    /**
+     * An ACK acknowledges its block and all of the blocks sent before it (the client
+     * may acknowledge a whole window at once). Duplicate and unexpected ACKs are ignored.
+     */
     public void ACKPacketHandling(byte[] packet) {
-        if(waitingForAckBlockNumber != -1) {
-            short ACKBlockNumber = (short) ( ((short) packet[2]) << 8 | (short) (packet[3]) & 0xff);
-            if(waitingForAckBlockNumber == ACKBlockNumber) {
-                System.out.println("Client " + username + " has received packet #" + ACKBlockNumber);
+        int unacknowledgedBlocks = lastSentBlockNumber - lastAckedBlockNumber;
+        if(unacknowledgedBlocks > 0) {
+            int ACKBlockNumber = (packet[2] & 0xff) << 8 | (packet[3] & 0xff);
+            int acknowledgedBlocks = (ACKBlockNumber - lastAckedBlockNumber) & 0xffff; //Distance in the 16-bit block numbers space
+            if(acknowledgedBlocks > 0 && acknowledgedBlocks <= unacknowledgedBlocks) {
+                lastAckedBlockNumber += acknowledgedBlocks;
+                TftpMetrics.get().ackRoundTrip(System.nanoTime() - dataPacketSendTimes[lastAckedBlockNumber % MAX_WINDOW_SIZE]);
+                if(Log.isEnabled(Log.Level.TRACE))
+                    Log.trace("Client " + username + " has received packet #" + ACKBlockNumber);
                 if(clientIsDownloading)
-                    sendNextFilePacket();
+                    sendNextFilePackets();
                 else
                     sendNextDirectoryListPackets();
             }
         }
     }
 
-    public void sendNextFilePacket() {
+    /**
+     * This method handles the packets of type DIGEST - | 0 15 | algorithm | 0 | hex digest | 0 |, the digest of the
+     * uploaded file, sent by the client of a checksummed upload before its last DATA packet.
+     */
+    private void digestReceived(byte[] message) {
+        if(uploadFileName == null || !checksummed)
+            return;
 
-        waitingForAckBlockNumber++;
+        int algorithmEnd = 2;
+        while(message[algorithmEnd] != 0)
+            algorithmEnd++;
+        String algorithm = new String(message, 2, algorithmEnd - 2, StandardCharsets.UTF_8);
+        if(algorithm.equalsIgnoreCase(SHA_256))
+            expectedUploadDigest = new String(message, algorithmEnd + 1, message.length - algorithmEnd - 2, StandardCharsets.UTF_8);
+    }
 
-        byte[] dataPacket = createEmptyDataPacket(waitingForAckBlockNumber, DATA_PACKET_MAX_SIZE);
-        int numOfBytesRead = -1;
+    /**
+     * This method handles the packets of type ERROR - only a checksum mismatch (ERROR-9) stops the transfer, the
+     * client sends it when a block did not match its checksum, or the file its digest. Any other ERROR is about
+     * one of the client's own requests, and is ignored as before.
+     * The download is released, the part of an upload is kept to be resumed.
+     */
+    private void transferStoppedByClient(byte[] message) {
+        int errorCode = message.length < 4 ? -1 : (message[2] & 0xff) << 8 | (message[3] & 0xff);
+        if(errorCode != 9)
+            return;
+        if(clientIsDownloading) {
+            Log.warn("Client " + username + " stopped its download");
+            clientIsDownloading = false;
+            TftpMetrics.get().transferAborted(true);
+            releaseDownload();
+        }
+        if(uploadFileName != null)
+            suspendUpload();
+    }
+
+    /**
+     * Sends the next DATA packets of the downloaded file, until there are 'windowSize' packets
+     * waiting for an ACK. The packet header is built in memory and the data section is
+     * transferred straight from the file to the client's socket (or sent from the cached content).
+     * A file whose size is a multiple of the maximum packet size ends with an empty DATA packet.
+     * A file that is deflated while it is sent is deflated one block at a time, into the slot of the block in the
+     * window - the slot is reused only after the block was acknowledged.
+     * The next file of a batch download is started as soon as the current one was sent - unless the current one is
+     * sent from the disk, its file must stay open until all of its blocks were acknowledged.
+     */
+    public void sendNextFilePackets() {
+
+        boolean failed = !sendCurrentFilePackets();
+
+        while( !failed && lastDataPacketSent && batchFilesToSend != null && !batchFilesToSend.isEmpty()
+                && lastSentBlockNumber - lastAckedBlockNumber < windowSize
+                && (fileToDownloadFromServer == null || lastAckedBlockNumber == lastSentBlockNumber) ) {
+            startNextBatchFile();
+            failed = !sendCurrentFilePackets();
+        }
+
+        if( !failed && lastDataPacketSent && batchFilesToSend != null && batchFilesToSend.isEmpty() ) {
+            connections.send(connectionId, PacketFactory.file("", 0, 0)); //The end of the batch
+            batchFilesToSend = null;
+        }
+
+        if( (lastDataPacketSent && batchFilesToSend == null && lastAckedBlockNumber == lastSentBlockNumber) || failed ) {
+            if(!failed && downloadDigest != null) //Computed while the file was sent - known to the next downloads
+                directoryIndex.putDigest(downloadFileName, downloadFileDigest, directoryVersion);
+            clientIsDownloading = false;
+            TftpMetrics.get().downloadCompleted(transferStartTime);
+            Log.info("Client " + username + " finished downloading file");
+            releaseDownload();
+        }
+    }
+
+    /**
+     * Sends the next DATA packets of the current file, until the window is full or its last DATA packet was sent.
+     * @return false if the file could not be read
+     */
+    private boolean sendCurrentFilePackets() {
+
+        if(lastDataPacketSent)
+            return true;
+
+        long fileSize = -1;
         try {
-            numOfBytesRead = fileToDownloadFromServer.read(dataPacket, DATA_SECTION_BEGIN_INDEX, DATA_PACKET_MAX_SIZE);
+            fileSize = cachedFileToDownload != null ? cachedFileToDownload.capacity() : fileToDownloadFromServer.size();
         } catch(IOException e) {
             e.printStackTrace();
         }
 
-        if( numOfBytesRead == DATA_PACKET_MAX_SIZE ) 
-            connections.send(connectionId, dataPacket);
-        
-        else if(numOfBytesRead > 0) {
-            byte[] lastDataPacket = createEmptyDataPacket(waitingForAckBlockNumber, numOfBytesRead);
-            System.arraycopy(dataPacket, DATA_SECTION_BEGIN_INDEX, lastDataPacket, DATA_SECTION_BEGIN_INDEX , numOfBytesRead);
-            connections.send(connectionId, lastDataPacket);
-        }
-        else {
-            waitingForAckBlockNumber = -1;
-            clientIsDownloading = false;
-            System.out.println("Client " + username + " finished downloading file");
+        while( !lastDataPacketSent && fileSize >= 0 && lastSentBlockNumber - lastAckedBlockNumber < windowSize ) {
+
+            lastSentBlockNumber++;
+            dataPacketSendTimes[lastSentBlockNumber % MAX_WINDOW_SIZE] = System.nanoTime();
+            int slotPosition = (lastSentBlockNumber - 1) % windowSize * blockSize; //Of the block in the window's data
+
+            if(deflatedFileToDownload != null) {
+                windowData.limit(slotPosition + blockSize).position(slotPosition);
+                int dataSectionSize;
+                try {
+                    dataSectionSize = deflatedFileToDownload.read(windowData);
+                } catch(IOException e) {
+                    e.printStackTrace();
+                    fileSize = -1;
+                    break;
+                }
+                lastDataPacketSent = dataSectionSize < blockSize;
+                sendDataPacket(packets.dataSection(windowData, lastSentBlockNumber, slotPosition, dataSectionSize));
+                continue;
+            }
 
-            try {
-                fileToDownloadFromServer.close();
-            } catch(IOException e) {
-                e.printStackTrace();
+            int dataSectionSize = (int) Math.min(blockSize, Math.max(0, Math.min(fileSize, downloadEnd) - downloadPosition));
+            lastDataPacketSent = dataSectionSize < blockSize;
+            if(cachedFileToDownload != null)
+                sendDataPacket(packets.dataSection(cachedFileToDownload, lastSentBlockNumber, (int) downloadPosition, dataSectionSize));
+            else {
+                ByteBuffer dataSection = null;
+                if(checksummed) { //Its checksums are computed from a copy of the block - the block is sent from the file
+                    try {
+                        readFileRegion(checksumBlock.clear().limit(dataSectionSize), downloadPosition);
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                        fileSize = -1;
+                        break;
+                    }
+                    dataSection = checksumBlock.flip();
+                }
+                connections.sendFileRegion(connectionId, dataHeader(dataSection, dataSectionSize),
+                        fileToDownloadFromServer, downloadPosition, dataSectionSize);
             }
+
+            downloadPosition += dataSectionSize;
         }
+
+        return fileSize >= 0;
     }
 
+    /**
+     * Sends the DATA packet of the last sent block, whose data section is 'dataSection'.
+     */
+    private void sendDataPacket(ByteBuffer dataSection) {
+        connections.send(connectionId, dataHeader(dataSection, dataSection.remaining()), dataSection);
+    }
 
     /**
-     * This method handles the packets of type DIRQ - lists the files in the server
+     * @return the header of the DATA packet of the last sent block. The packets of a checksummed download carry the
+     * CRC32C of their data section 'dataSection' (null if the download is not checksummed), and the last one is
+     * preceded by the DIGEST of the file - which is sent here.
      */
-    private void directoryList() {
-        List<String> filenames = listFilesInDirectory("Files");
-        String nextFilename;
-        byte[] nextFilenameInBytes;
-        byte separator = 0;
+    private byte[] dataHeader(ByteBuffer dataSection, int dataSectionSize) {
+        if(!checksummed)
+            return packets.dataHeader(lastSentBlockNumber, dataSectionSize);
+
+        if(downloadDigest != null && deflatedFileToDownload == null) //A deflated file is hashed as it is read
+            downloadDigest.update(dataSection.duplicate());
+        blockChecksum.reset();
+        blockChecksum.update(dataSection.duplicate());
+        if(lastDataPacketSent) {
+            if(downloadDigest != null)
+                downloadFileDigest = downloadDigest.digest();
+            connections.send(connectionId, PacketFactory.digest(SHA_256, HexFormat.of().formatHex(downloadFileDigest)));
+        }
+        return packets.dataHeader(lastSentBlockNumber, dataSectionSize, (int) blockChecksum.getValue());
+    }
+
+    /**
+     * Opens the next file of the batch download and sends its FILE packet - a file that cannot be read
+     * is skipped, its FILE packet holds the error.
+     */
+    private void startNextBatchFile() {
+        String filename = batchFilesToSend.poll();
+        cachedFileToDownload = null;
+        closeFileToDownload();
+
+        if(!isServedFileName(filename)) {
+            connections.send(connectionId, PacketFactory.file(filename, 2, 0));
+            Log.warn("Client " + username + " asked to download " + filename + ", which is not a file of the server (ERROR-2)");
+            return;
+        }
 
-        System.out.println("Client " + username + " asked for a directory list");
+        long fileSize;
+        try {
+            cachedFileToDownload = fileCache.get(filename);
+            if(cachedFileToDownload == null)
+                fileToDownloadFromServer = FileChannel.open(Paths.get("Files", filename), StandardOpenOption.READ);
+            fileSize = cachedFileToDownload != null ? cachedFileToDownload.capacity() : fileToDownloadFromServer.size();
+        } catch(IOException e) {
+            closeFileToDownload();
+            connections.send(connectionId, PacketFactory.file(filename, 1, 0));
+            Log.debug("File - " + filename + " - of the batch download was not found");
+            return;
+        }
 
-        while(!filenames.isEmpty()) {
+        connections.send(connectionId, PacketFactory.file(filename, 0, fileSize));
+        downloadPosition = 0;
+        downloadEnd = fileSize;
+        lastDataPacketSent = false;
+    }
 
-            nextFilename = filenames.remove(0);
-            nextFilenameInBytes = nextFilename.getBytes(StandardCharsets.UTF_8);
 
-            for(int i = 0; i < nextFilenameInBytes.length; i++)
-                directoryListingData.add(nextFilenameInBytes[i]);
+    /**
+     * This method handles the packets of type DIRQ - lists the files in the server.
+     * The listing is taken from the directory index, the directory itself is not scanned.
+     */
+    private void directoryList() {
+        Log.debug("Client " + username + " asked for a directory list");
 
-            directoryListingData.add(separator);
-        }
+        directoryListingData = ByteBuffer.wrap(directoryIndex.listing()).asReadOnlyBuffer();
 
-        waitingForAckBlockNumber = 0;
+        lastSentBlockNumber = 0;
+        lastAckedBlockNumber = 0;
         sendNextDirectoryListPackets();
     }
 
     private void sendNextDirectoryListPackets() {
 
-        waitingForAckBlockNumber++;
+        if(directoryListingData != null && directoryListingData.hasRemaining()) {
 
-        if(!directoryListingData.isEmpty()) {
+            lastSentBlockNumber++;
+            dataPacketSendTimes[lastSentBlockNumber % MAX_WINDOW_SIZE] = System.nanoTime();
 
-            int dataSectionSize;
-            if(directoryListingData.size() < DATA_PACKET_MAX_SIZE)
-                dataSectionSize = directoryListingData.size();
-            else
-                dataSectionSize = DATA_PACKET_MAX_SIZE;
+            int dataSectionSize = Math.min(directoryListingData.remaining(), DATA_PACKET_MAX_SIZE);
     
-            byte[] dataPacket = createEmptyDataPacket(waitingForAckBlockNumber, dataSectionSize);
-            for(int i = DATA_SECTION_BEGIN_INDEX; i < dataPacket.length; i++)
-                dataPacket[i] = directoryListingData.remove(0);
+            byte[] dataPacketHeader = packets.dataHeader(lastSentBlockNumber, dataSectionSize);
+            ByteBuffer dataSection = packets.dataSection(directoryListingData, lastSentBlockNumber, directoryListingData.position(), dataSectionSize);
+            directoryListingData.position(directoryListingData.position() + dataSectionSize);
             
-            connections.send(connectionId, dataPacket);
+            connections.send(connectionId, dataPacketHeader, dataSection);
+        }
+        else if(directoryListingData != null) { //The last block of the listing was acknowledged
+            directoryListingData = null;
+            packets.releaseDataSections();
         }
-        else
-            waitingForAckBlockNumber = -1;
     }
 
 
@@ -261,16 +754,16 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
         System.arraycopy(message,2,usernameInBytes,0,usernameLength); //Skips the opcode bytes
 
         String username = new String(usernameInBytes, StandardCharsets.UTF_8);
-        System.out.println(username + " is trying to connect");
+        Log.debug(username + " is trying to connect");
 
         if( connections.login(connectionId , username) ) { //Login succeeded
-            System.out.println(username + " is connected");
-            connections.send(connectionId, createACKPacket((short) 0));
+            Log.info(username + " is connected");
+            connections.send(connectionId, PacketFactory.ACK_0);
             this.username = username;
         }
         else { //Create and send error packet
-            System.out.println(username + " failed to connect");
-            connections.send(connectionId, errorPacket(7)); //User already logged in
+            Log.info(username + " failed to connect");
+            connections.send(connectionId, PacketFactory.error(7)); //User already logged in
         }
     }
 
@@ -279,21 +772,121 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
         byte[] filenameInBytes = Arrays.copyOfRange(message, 2, message.length - 1);
         String filename = new String(filenameInBytes , StandardCharsets.UTF_8);
 
-        System.out.println("Client " + username + " requesting to delete: " + filename);
+        Log.debug("Client " + username + " requesting to delete: " + filename);
+
+        if(!isServedFileName(filename)) {
+            connections.send(connectionId, PacketFactory.error(2));
+            Log.warn("Client " + username + " asked to delete " + filename + ", which is not a file of the server (ERROR-2)");
+            return;
+        }
 
         File fileToDelete = new File("Files/" + filename);
 
         if(!fileToDelete.exists())
-            connections.send(connectionId, errorPacket(1));
+            connections.send(connectionId, PacketFactory.error(1));
         else {
-            connections.send(connectionId, createACKPacket((short) 0));
-            fileToDelete.delete();
-            System.out.println("File " + filename + " was deleted");
+            connections.send(connectionId, PacketFactory.ACK_0);
+            if(blobStore != null) //Its content is deleted with the last file that references it
+                blobStore.delete(filename);
+            else
+                fileToDelete.delete();
+            fileCache.invalidate(filename);
+            directoryIndex.remove(filename);
+            Log.info("File " + filename + " was deleted");
             byte deleted = 0;
             broadcast(filename, deleted);
         }
     }   
 
+    /**
+     * This method handles the packets of type OPT - an option for the next read/write request.
+     * Supported options are acknowledged with an OACK packet holding the value the server
+     * accepted, unknown options are ignored. The transfer size (tsize 0) is acknowledged by the
+     * next read request, with the size of its file, right before its first DATA packet.
+     * The offset (of a resumed transfer) is acknowledged by the next read/write request with the offset it
+     * starts from - the requested one, or less if the server has less of the file.
+     * The length (of a ranged download) is acknowledged by the next read request with the number of bytes it
+     * sends from the offset - the requested one, or less if the file ends before it.
+     * The compression is acknowledged by the next read/write request with the compression of its DATA blocks -
+     * "deflate", or "none" if it is not supported (or the downloaded file does not compress).
+     * The digest is acknowledged by the next read/write request with the digest of its file - "sha-256", or "none"
+     * if it is not supported (or the download is ranged). The DATA blocks of such a transfer carry their CRC32C.
+     */
+    private void optionNegotiation(byte[] message) {
+
+        int nameEnd = 2;
+        while(message[nameEnd] != 0)
+            nameEnd++;
+
+        String optionName = new String(message, 2, nameEnd - 2, StandardCharsets.UTF_8).toLowerCase();
+        String optionValue = new String(message, nameEnd + 1, message.length - nameEnd - 2, StandardCharsets.UTF_8);
+
+        if(!optionName.equals(BLOCK_SIZE_OPTION) && !optionName.equals(WINDOW_SIZE_OPTION) && !optionName.equals(TRANSFER_SIZE_OPTION)
+                && !optionName.equals(OFFSET_OPTION) && !optionName.equals(LENGTH_OPTION) && !optionName.equals(COMPRESSION_OPTION)
+                && !optionName.equals(DIGEST_OPTION))
+            return;
+
+        if(optionName.equals(COMPRESSION_OPTION)) { //Answered by the request - "none" for an unknown compression
+            requestedCompression = optionValue;
+            return;
+        }
+        if(optionName.equals(DIGEST_OPTION)) { //Answered by the request - "none" for an unknown digest
+            requestedDigest = optionValue;
+            return;
+        }
+
+        if(optionName.equals(OFFSET_OPTION) || optionName.equals(LENGTH_OPTION)) { //Answered by the request
+            long byteCount;
+            try {
+                byteCount = Long.parseLong(optionValue);
+            } catch(NumberFormatException e) {
+                byteCount = -1;
+            }
+            if(byteCount < 0)
+                connections.send(connectionId, PacketFactory.error(8));
+            if(optionName.equals(OFFSET_OPTION))
+                requestedOffset = Math.max(byteCount, -1);
+            else
+                requestedLength = Math.max(byteCount, -1);
+            return;
+        }
+
+        int value;
+        try {
+            value = Integer.parseInt(optionValue);
+        } catch(NumberFormatException e) {
+            value = 0;
+        }
+
+        int acceptedValue;
+        if(optionName.equals(TRANSFER_SIZE_OPTION)) { //Only "0" (asking for the size) - answered by the read request
+            if(!optionValue.equals("0")) {
+                connections.send(connectionId, PacketFactory.error(8));
+                return;
+            }
+            transferSizeRequested = true;
+            return;
+        }
+        else if(optionName.equals(BLOCK_SIZE_OPTION)) {
+            if(value < MIN_BLOCK_SIZE) {
+                connections.send(connectionId, PacketFactory.error(8));
+                return;
+            }
+            requestedBlockSize = Math.min(value, MAX_BLOCK_SIZE);
+            acceptedValue = requestedBlockSize;
+        }
+        else {
+            if(value < 1) {
+                connections.send(connectionId, PacketFactory.error(8));
+                return;
+            }
+            requestedWindowSize = Math.min(value, MAX_WINDOW_SIZE);
+            acceptedValue = requestedWindowSize;
+        }
+
+        connections.send(connectionId, PacketFactory.optionAck(optionName, Integer.toString(acceptedValue)));
+    }
+
     /**
      * This method notifies all logged in clients about file deleted/added.
      * @param filename
@@ -301,14 +894,8 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
      */
     public void broadcast(String filename, byte deleted_added) {
 
-        byte[] filenameAsBytes = filename.getBytes();
-        byte[] BCASTPacket = new byte[filenameAsBytes.length + 4];
-        BCASTPacket[0] = 0;
-        BCASTPacket[1] = 9;
-        BCASTPacket[2] = deleted_added;
-        System.arraycopy(filenameAsBytes, 0, BCASTPacket, 3, filenameAsBytes.length);
-        connections.sendAll(BCASTPacket);
-        System.out.println("A broadcast message has been sent to all active clients");
+        connections.sendAll(PacketFactory.broadcast(filename, deleted_added));
+        Log.debug("A broadcast message has been sent to all active clients");
     }
 
     /**
@@ -316,13 +903,13 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
      */
     private void disconnectUser() {
         if(connections.isLoggedIn(connectionId)) {
-            connections.send(connectionId, createACKPacket((short) 0));
+            connections.send(connectionId, PacketFactory.ACK_0);
             shouldTerminate = true;
             connections.disconnect(connectionId);
-            System.out.println("Client " + username + " has disconnected");
+            Log.info("Client " + username + " has disconnected");
         }
         else {                                                 //User has not logged in yet
-            connections.send(connectionId, errorPacket(6));
+            connections.send(connectionId, PacketFactory.error(6));
         }
     }
 
@@ -331,76 +918,142 @@ public class TftpProtocol implements BidiMessagingProtocol<byte[]>  {
     //=================================HELPER METHODS==================================
 
     /**
-     * This method creates and returns an error packet of certain error code
-     * @param errorCodeInt - the error code
-     * @return a valid error packet
+     * Drops the content of the current download (completed or not), and closes its file.
      */
-    private byte[] errorPacket(int errorCodeInt){
+    private void releaseDownload() {
+        batchFilesToSend = null;
+        cachedFileToDownload = null;
+        packets.releaseDataSections();
+        if(deflatedFileToDownload != null) {
+            deflatedFileToDownload.close();
+            deflatedFileToDownload = null;
+        }
+        windowData = null;
+        if(checksumBlock != null) {
+            checksumBlockPool.offer(checksumBlock);
+            checksumBlock = null;
+        }
+        downloadDigest = null;
+        downloadFileDigest = null;
+        checksummed = false;
+        closeFileToDownload();
+    }
 
-        String errMessage;
-        byte errCode = (byte) errorCodeInt;
+    /**
+     * Reads the region of the downloaded file from 'position' into 'region' (its remaining bytes).
+     * @throws IOException if the file ended before the region
+     */
+    private void readFileRegion(ByteBuffer region, long position) throws IOException {
+        int regionStart = region.position();
+        while(region.hasRemaining()) {
+            if(fileToDownloadFromServer.read(region, position + region.position() - regionStart) < 0)
+                throw new IOException("the file ended at byte " + (position + region.position() - regionStart));
+        }
+    }
 
-        switch (errCode) {
-            case 0: errMessage = "Not defined"; break;
-            case 1: errMessage = "File not found"; break;
-            case 2: errMessage = "Access voilation"; break;
-            case 3: errMessage = "Disk full or allocation exceeded"; break;
-            case 4: errMessage = "Illegal TFTP operation"; break;
-            case 5: errMessage = "File already exists"; break;
-            case 6: errMessage = "User not logged in"; break;
-            case 7: errMessage = "User already logged in"; break;        
-            default: errMessage = null; break;
+    /**
+     * Hashes the first 'length' bytes of the downloaded file - the part that a resumed download skips, the digest
+     * is of the whole file.
+     */
+    private void hashDownloadedFileUpTo(long length) throws IOException {
+        if(cachedFileToDownload != null) {
+            downloadDigest.update(cachedFileToDownload.duplicate().limit((int) length));
+            return;
+        }
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(length, 1 << 16));
+        for(long position = 0; position < length; position += chunk.capacity()) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), length - position));
+            readFileRegion(chunk, position);
+            downloadDigest.update(chunk.flip());
         }
+    }
 
-        byte[] errMessageInBytes = errMessage.getBytes();
-        byte[] errPacketBeginning = { 0 , 5 , 0 , errCode};
-        byte[] errPacket = new byte[errMessageInBytes.length + errPacketBeginning.length + 1];
-        System.arraycopy(errPacketBeginning, 0, errPacket, 0, 4);
-        System.arraycopy(errMessageInBytes, 0, errPacket, 4, errMessageInBytes.length);
-        errPacket[errPacket.length - 1] = 0;
-        return errPacket;
+    /**
+     * @return true if the CRC32C of a checksummed DATA packet (bytes 6-9) is the CRC32C of its data section
+     */
+    private boolean checksumMatches(byte[] packet, int dataSectionBegin, int dataSectionSize) {
+        blockChecksum.reset();
+        blockChecksum.update(packet, dataSectionBegin, dataSectionSize);
+        int checksum = (packet[6] & 0xff) << 24 | (packet[7] & 0xff) << 16 | (packet[8] & 0xff) << 8 | (packet[9] & 0xff);
+        return checksum == (int) blockChecksum.getValue();
     }
 
-    private byte[] createEmptyDataPacket(int blockNumber, int dataSectionSize) {
+    private void closeFileToDownload() {
+        try {
+            if(fileToDownloadFromServer != null)
+                fileToDownloadFromServer.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        fileToDownloadFromServer = null;
+    }
 
-        byte[] dataPacket = new byte[dataSectionSize + DATA_SECTION_BEGIN_INDEX];
-        dataPacket[0] = 0;
-        dataPacket[1] = 3; //DATA OP_CODE
-        dataPacket[2] = (byte) (dataSectionSize >> 8); //Packet size - 2 bytes
-        dataPacket[3] = (byte) (dataSectionSize & 0xff);
-        dataPacket[4] = (byte) (blockNumber >> 8); //Block number - 2 bytes
-        dataPacket[5] = (byte) (blockNumber & 0xff);
-        return dataPacket;
+    /**
+     * @return the part of an interrupted upload of 'filename' by the current user - every user has a directory of
+     * its own, so that an upload never resumes on top of a part that another user sent
+     */
+    private Path partialUploadOf(String filename) {
+        String owner = URLEncoder.encode(username, StandardCharsets.UTF_8).replace(".", "%2E"); //Never "." or ".."
+        return Paths.get(PARTIAL_UPLOADS_DIRECTORY, owner, filename);
     }
 
-    private byte[] createACKPacket(short blockNumber) {
-        byte[] blockNumberAsBytes = new byte[] { (byte) (blockNumber >> 8) , (byte) (blockNumber & 0xff) };
-        byte[] ACKPacket = new byte[4];
-        ACKPacket[0] = (byte) 0;
-        ACKPacket[1] = (byte) 4;
-        ACKPacket[2] = blockNumberAsBytes[0];
-        ACKPacket[3] = blockNumberAsBytes[1];
+    /**
+     * @return true if 'filename' can name a file of the Files directory - a request never names a path (a separator),
+     * or a hidden file (a leading dot)
+     */
+    private static boolean isServedFileName(String filename) {
+        return !filename.isEmpty() && !filename.startsWith(".") && filename.indexOf('/') < 0 && filename.indexOf('\\') < 0;
+    }
 
-        return ACKPacket;
+    /**
+     * Deletes the partially uploaded file of the current upload (that failed).
+     */
+    private void abortUpload() {
+        Log.warn("Upload of " + uploadFileName + " was not completed - the file is deleted");
+        TftpMetrics.get().transferAborted(false);
+        fileToUploadToServer.abort();
+        fileToUploadToServer = null;
+        directoryIndex.abortWriting(uploadFileName);
+        uploadFileName = null;
     }
 
     /**
-     * @param dir - the directory to lookup
-     * @return a set of all the file names in the specified directory
+     * Keeps the partially uploaded file of the current upload (that was interrupted) - the client may resume it.
      */
-    private List<String> listFilesInDirectory(String dir) {
+    private void suspendUpload() {
+        long keptBytes = fileToUploadToServer.suspend();
+        Log.warn("Upload of " + uploadFileName + " was interrupted - its first " + keptBytes + " bytes are kept to be resumed");
+        TftpMetrics.get().transferAborted(false);
+        fileToUploadToServer = null;
+        directoryIndex.abortWriting(uploadFileName);
+        uploadFileName = null;
+    }
 
-        File folder = new File(dir);
-        File[] listOfFiles = folder.listFiles();
-        List<String> filenames = new LinkedList<String>();
+    /**
+     * Releases the file of a download that was not completed, and keeps the part of an upload that was
+     * not completed - the client may resume it (offset option).
+     */
+    @Override
+    public void connectionClosed() {
+        connectionClosed(true);
+    }
 
-        for (int i = 0; i < listOfFiles.length; i++) {
-            if (listOfFiles[i].isFile()) 
-                filenames.add( listOfFiles[i].getName() );
+    /**
+     * Releases the file of a download that was not completed. The part of an upload that was not completed is
+     * kept if 'uploadResumable', and deleted otherwise.
+     */
+    void connectionClosed(boolean uploadResumable) {
+        if(clientIsDownloading) {
+            clientIsDownloading = false;
+            TftpMetrics.get().transferAborted(true);
+            releaseDownload();
         }
-        return filenames;
-    }
 
+        if(uploadFileName != null && uploadResumable)
+            suspendUpload();
+        else if(uploadFileName != null)
+            abortUpload();
+    }
 
     @Override
     public boolean shouldTerminate() {
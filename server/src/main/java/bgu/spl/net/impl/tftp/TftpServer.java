@@ -1,5 +1,7 @@
 package bgu.spl.net.impl.tftp;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.function.Supplier;
 
 import bgu.spl.net.api.BidiMessagingProtocol;
@@ -7,28 +9,138 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.srv.ConnectionsImpl;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.ServerMetrics;
 
 public class TftpServer {
-    
+
+        private static final long DEFAULT_FILE_CACHE_BYTES = 64L << 20; //64MB
+        private static final long DEFAULT_SESSION_IDLE_SECONDS = 900; //15 minutes
+        private static final long DEFAULT_UDP_TIMEOUT_MILLIS = 1000;
+        private static final int DEFAULT_UDP_RETRIES = 5;
+
         public static void main(String[] args) {
-            
-            Supplier< BidiMessagingProtocol <byte[]> > protocolFactory = () -> new TftpProtocol();
+
+            //-Dtftp.storage=plain|dedup - dedup stores the content of identical uploads once, the files are links to it
+            String storage = System.getProperty("tftp.storage", "plain");
+            BlobStore blobStore = null;
+            if(storage.equalsIgnoreCase("dedup")) {
+                try {
+                    blobStore = new BlobStore(Paths.get("Files"));
+                } catch (IOException ex) {
+                    System.out.println("Could not open the blob store: " + ex.getMessage());
+                    return;
+                }
+            }
+            else if(!storage.equalsIgnoreCase("plain")) {
+                System.out.println("Unknown storage (expected plain or dedup)");
+                return;
+            }
+            BlobStore store = blobStore;
+
+            //The cache budget can be changed with -Dtftp.cache.bytes=<bytes> (0 disables the cache)
+            FileCache fileCache = new FileCache(Paths.get("Files"), Long.getLong("tftp.cache.bytes", DEFAULT_FILE_CACHE_BYTES), store);
+            DirectoryIndex directoryIndex;
+            try {
+                directoryIndex = new DirectoryIndex(Paths.get("Files"), filename -> {
+                    if(store != null) //Files deleted or replaced outside of the server release their blobs
+                        store.update(filename);
+                    fileCache.invalidate(filename);
+                });
+                directoryIndex.watch();
+            } catch (IOException ex) {
+                System.out.println("Could not index the Files directory: " + ex.getMessage());
+                return;
+            }
+
+            ServerMetrics.register();
+            TftpMetrics.register();
+
+            UploadWriter.Durability uploadDurability;
+            try {
+                //-Dtftp.upload.durability=ack_on_buffer|ack_on_write|fsync_on_completion
+                uploadDurability = UploadWriter.Durability.valueOf(System.getProperty("tftp.upload.durability", "ack_on_buffer").toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                System.out.println("Unknown upload durability (expected ack_on_buffer, ack_on_write or fsync_on_completion)");
+                return;
+            }
+
+            Supplier< BidiMessagingProtocol <byte[]> > protocolFactory = () -> new TftpProtocol(fileCache, directoryIndex, uploadDurability, store);
             Supplier< MessageEncoderDecoder <byte[]> > encdecFactory = TftpEncoderDecoder::new;
-            Connections<byte[]> connections = new ConnectionsImpl<byte[]>();
+            ConnectionsImpl.OverflowPolicy overflowPolicy;
+            try {
+                //-Dtftp.broadcast.overflow=drop|disconnect - for clients that do not read their broadcasts
+                overflowPolicy = ConnectionsImpl.OverflowPolicy.valueOf(System.getProperty("tftp.broadcast.overflow", "drop").toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                System.out.println("Unknown broadcast overflow policy (expected drop or disconnect)");
+                return;
+            }
+            //-Dtftp.session.idle=<seconds> - clients that send nothing for this long are disconnected (0 never disconnects them)
+            long sessionIdleMillis = Long.getLong("tftp.session.idle", DEFAULT_SESSION_IDLE_SECONDS) * 1000;
+            Connections<byte[]> connections = new ConnectionsImpl<byte[]>(overflowPolicy, sessionIdleMillis);
             int port;
+            String mode;
+            int numOfThreads;
 
             if(args.length != 0)
                 port = Integer.parseInt(args[0]);
             else
                 port = 7777; //Default port
 
-        // you can use any server... 
-        Server.<byte[]>threadPerClient(
-                port, //port
-                protocolFactory, //protocol factory
-                encdecFactory, //message encoder decoder factory
-                connections //An object to manage and handle the multiple clients' connections to the server.
-        ).serve();
+            if(args.length > 1)
+                mode = args[1];
+            else
+                mode = "tpc"; //Default server mode - thread per client
+
+            if(args.length > 2)
+                numOfThreads = Integer.parseInt(args[2]);
+            else
+                numOfThreads = Runtime.getRuntime().availableProcessors();
+
+            Server<byte[]> server;
+
+            switch (mode) {
+                case "tpc":
+                    server = Server.<byte[]>threadPerClient(
+                            port, //port
+                            protocolFactory, //protocol factory
+                            encdecFactory, //message encoder decoder factory
+                            connections //An object to manage and handle the multiple clients' connections to the server.
+                    );
+                    break;
+                case "vtpc":
+                    try {
+                        server = Server.<byte[]>virtualThreadPerClient(port, protocolFactory, encdecFactory, connections);
+                    } catch (UnsupportedOperationException ex) {
+                        System.out.println(ex.getMessage());
+                        return;
+                    }
+                    break;
+                case "reactor":
+                    server = Server.<byte[]>reactor(
+                            numOfThreads, //number of worker threads
+                            port,
+                            protocolFactory,
+                            encdecFactory,
+                            connections
+                    );
+                    break;
+                default:
+                    System.out.println("Unknown server mode: " + mode + " (expected tpc, vtpc or reactor)");
+                    return;
+            }
+
+            //-Dtftp.udp.port=<port> - classic TFTP clients are served over UDP as well (69 is the standard port)
+            int udpPort = Integer.getInteger("tftp.udp.port", -1);
+            if(udpPort >= 0) {
+                //-Dtftp.udp.timeout=<milliseconds>, -Dtftp.udp.retries=<count> - a transfer whose client does not answer
+                // is sent its last datagrams again after the timeout, and stopped after the retries
+                TftpDatagramServer udpServer = new TftpDatagramServer(udpPort,
+                        () -> new TftpProtocol(fileCache, directoryIndex, uploadDurability, store), connections,
+                        Long.getLong("tftp.udp.timeout", DEFAULT_UDP_TIMEOUT_MILLIS), Integer.getInteger("tftp.udp.retries", DEFAULT_UDP_RETRIES));
+                new Thread(udpServer::serve, "udp-server").start();
+            }
+
+            server.serve();
 
     }
 }
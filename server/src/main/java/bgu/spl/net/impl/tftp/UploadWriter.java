@@ -0,0 +1,241 @@
+package bgu.spl.net.impl.tftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes the DATA blocks of an upload into its file. The blocks are collected in a buffer and
+ * written to the file in large chunks, instead of a write for every block.
+ * The buffers are direct buffers, reused by all of the uploads (one buffer for every upload in progress).
+ * The file is written in the partial uploads directory, and moved to its place once the upload is completed -
+ * the part of an upload that was interrupted is kept there, so that the upload can be resumed.
+ * A compressed upload (deflate) is inflated block by block, straight into the buffer.
+ * The content is hashed (SHA-256) while it is written - the digest of the whole file is known once it is completed,
+ * without reading it again. With a blob store the completed file is stored as the blob of its digest.
+ */
+public final class UploadWriter {
+
+    /**
+     * The content that was written is not the content the client sent.
+     */
+    static final class DigestMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        DigestMismatchException(String digest, String expectedDigest) {
+            super("the SHA-256 of the file is " + digest + ", the client sent " + expectedDigest);
+        }
+    }
+
+    /**
+     * When the data of an upload reaches the file, relative to the ACKs that the client receives.
+     * The last ACK of an upload is always sent after all of its data was written to the file.
+     */
+    public enum Durability {
+        ACK_ON_BUFFER,        //A block is acknowledged once it is in the buffer - it is written when the buffer is full
+        ACK_ON_WRITE,         //A block is acknowledged once it is written to the file
+        FSYNC_ON_COMPLETION   //As ACK_ON_BUFFER, and the file is forced to the storage device before the last ACK
+    }
+
+    private static final int BUFFER_SIZE = Math.max(Integer.getInteger("tftp.upload.buffer", 256 << 10), 1 << 16);
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Durability durability;
+    private final Inflater inflater; //null if the upload is not compressed
+    private final BlobStore blobStore; //null if the files are stored as they are
+    private final MessageDigest digest = DirectoryIndex.newDigest(); //Of the content written so far
+    private ByteBuffer buffer;
+
+    /**
+     * Opens the partial upload 'file' (creates it if it does not exist) - the blocks are written from 'offset'
+     * on, and whatever the file holds after 'offset' is dropped.
+     * @param deflated - the blocks are a deflate stream of the data (from 'offset')
+     * @param blobStore - where the completed file is stored, null to move it to its place as it is
+     */
+    UploadWriter(Path file, Durability durability, long offset, boolean deflated, BlobStore blobStore) throws IOException {
+        this.file = file;
+        this.durability = durability;
+        this.inflater = deflated ? new Inflater() : null;
+        this.blobStore = blobStore;
+        Files.createDirectories(file.getParent());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        buffer = bufferPool.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            channel.truncate(offset);
+            channel.position(offset); //Resumed uploads continue from the offset, the bytes before it are not touched
+            hashWrittenContent(offset);
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Adds 'length' bytes of 'data' from 'offset' to the file. When this method returns the block may be acknowledged.
+     */
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (inflater != null)
+            inflate(data, offset, length);
+        else {
+            if (length > buffer.remaining())
+                writeBuffer();
+            buffer.put(data, offset, length); //A block is never larger than the buffer
+        }
+        if (durability == Durability.ACK_ON_WRITE)
+            writeBuffer();
+    }
+
+    /**
+     * @return the size of the partial upload 'file', 0 if there is no such file
+     */
+    static long partialSize(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the rest of the data, closes the file (forcing it to the device under FSYNC_ON_COMPLETION)
+     * and moves it to 'target' - or stores it in the blob store, and links 'target' to its blob.
+     * @param expectedDigest - the digest of the file that the client sent (hex), null if it sent none
+     * @return the SHA-256 digest of the file
+     * @throws java.nio.file.FileAlreadyExistsException if 'target' was created while the file was uploaded
+     * @throws ZipException if the compressed data ended before the end of its stream
+     * @throws DigestMismatchException if the file's digest is not 'expectedDigest' - the file is not moved
+     */
+    byte[] complete(Path target, String expectedDigest) throws IOException {
+        byte[] contentDigest;
+        try {
+            if (inflater != null && !inflater.finished())
+                throw new ZipException("the compressed data ended in the middle of its stream");
+            writeBuffer();
+            contentDigest = digest.digest();
+            if (expectedDigest != null && !HexFormat.of().formatHex(contentDigest).equalsIgnoreCase(expectedDigest))
+                throw new DigestMismatchException(HexFormat.of().formatHex(contentDigest), expectedDigest);
+            if (durability == Durability.FSYNC_ON_COMPLETION)
+                channel.force(true);
+        } finally {
+            close();
+        }
+        if (blobStore != null)
+            blobStore.store(file, contentDigest, target);
+        else
+            Files.move(file, target);
+        deleteDirectoryIfEmpty();
+        return contentDigest;
+    }
+
+    /**
+     * Writes the data received so far and closes the file, which is kept so that the upload can be resumed.
+     * @return the size of the kept file
+     */
+    long suspend() {
+        try {
+            try {
+                writeBuffer();
+            } finally {
+                close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return partialSize(file);
+    }
+
+    /**
+     * Closes and deletes the file of an upload that failed.
+     */
+    void abort() {
+        try {
+            close();
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        deleteDirectoryIfEmpty();
+    }
+
+    //=================================HELPER METHODS==================================
+
+    /**
+     * Inflates a block into the buffer, writing the buffer whenever it is full.
+     * @throws ZipException if the block is not a valid part of a deflate stream
+     */
+    private void inflate(byte[] data, int offset, int length) throws IOException {
+        inflater.setInput(data, offset, length);
+        try {
+            while (!inflater.finished()) {
+                if (!buffer.hasRemaining())
+                    writeBuffer();
+                if (inflater.inflate(buffer) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break; //The rest of the data is in the next blocks
+            }
+        } catch (DataFormatException ex) {
+            throw new ZipException("corrupt compressed data (" + ex.getMessage() + ")");
+        }
+        if (inflater.needsDictionary())
+            throw new ZipException("compressed data with a preset dictionary");
+    }
+
+    /**
+     * Hashes the first 'length' bytes of the file - the part of the upload that is resumed.
+     */
+    private void hashWrittenContent(long length) throws IOException {
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead < 0)
+                throw new IOException("the partial upload " + file + " ended before byte " + length);
+            position += bytesRead;
+            digest.update(buffer.flip());
+        }
+        buffer.clear();
+    }
+
+    // Deletes the directory of the file (created for it) once it holds no other partial uploads
+    private void deleteDirectoryIfEmpty() {
+        try {
+            Files.deleteIfExists(file.getParent());
+        } catch (DirectoryNotEmptyException ex) {
+            //Other uploads of the same user were interrupted - kept to be resumed
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        digest.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void close() throws IOException {
+        if (inflater != null)
+            inflater.end();
+        if (buffer != null) {
+            buffer.clear();
+            bufferPool.offer(buffer);
+            buffer = null;
+        }
+        channel.close();
+    }
+}
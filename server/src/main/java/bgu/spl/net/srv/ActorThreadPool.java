@@ -0,0 +1,86 @@
+package bgu.spl.net.srv;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread pool that executes the tasks of every actor (a connection handler in our case)
+ * one after the other - so tasks of the same client are never processed concurrently,
+ * while tasks of different clients run in parallel.
+ */
+public class ActorThreadPool {
+
+    private final Map<Object, Queue<Runnable>> acts;
+    private final ReadWriteLock actsRWLock;
+    private final Set<Object> playingNow;
+    private final ExecutorService threads;
+
+    public ActorThreadPool(int threads) {
+        this.threads = Executors.newFixedThreadPool(threads);
+        acts = new WeakHashMap<>();
+        playingNow = ConcurrentHashMap.newKeySet();
+        actsRWLock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Submits a new task to be executed on behalf of 'act'.
+     * The task runs only after all the previously submitted tasks of 'act' have completed.
+     */
+    public void submit(Object act, Runnable r) {
+        synchronized (act) {
+            if (!playingNow.contains(act)) {
+                playingNow.add(act);
+                execute(r, act);
+            } else {
+                pendingRunnablesOf(act).add(r);
+            }
+        }
+    }
+
+    public void shutdown() {
+        threads.shutdownNow();
+    }
+
+    private Queue<Runnable> pendingRunnablesOf(Object act) {
+
+        actsRWLock.readLock().lock();
+        Queue<Runnable> pendingRunnables = acts.get(act);
+        actsRWLock.readLock().unlock();
+
+        if (pendingRunnables == null) {
+            actsRWLock.writeLock().lock();
+            acts.put(act, pendingRunnables = new LinkedList<>());
+            actsRWLock.writeLock().unlock();
+        }
+        return pendingRunnables;
+    }
+
+    private void execute(Runnable r, Object act) {
+        threads.execute(() -> {
+            try {
+                r.run();
+            } finally {
+                complete(act);
+            }
+        });
+    }
+
+    private void complete(Object act) {
+        synchronized (act) {
+            Queue<Runnable> pending = pendingRunnablesOf(act);
+            if (pending.isEmpty()) {
+                playingNow.remove(act);
+            } else {
+                execute(pending.poll(), act);
+            }
+        }
+    }
+}
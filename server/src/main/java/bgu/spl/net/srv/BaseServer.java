@@ -3,8 +3,9 @@ package bgu.spl.net.srv;
 import bgu.spl.net.api.BidiMessagingProtocol;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
@@ -12,7 +13,7 @@ public abstract class BaseServer<T> implements Server<T> {
     private final int port;
     private final Supplier<BidiMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
-    private ServerSocket sock;
+    private ServerSocketChannel sock;
     private final Connections<T> connections;
 
 
@@ -31,20 +32,25 @@ public abstract class BaseServer<T> implements Server<T> {
     @Override
     public void serve() {
 
-        try (ServerSocket serverSock = new ServerSocket(port)) {
-			System.out.println("Server started");
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+            serverSock.bind(new InetSocketAddress(port));
+			Log.info("Server started");
 
             this.sock = serverSock; //just to be able to close
 
             while (!Thread.currentThread().isInterrupted()) {
 
-                Socket clientSock = serverSock.accept();
+                //Accepting through a channel gives every client socket a channel, to be used for zero-copy writes
+                Socket clientSock = serverSock.accept().socket();
+                //A DATA packet is written as a header followed by the file region - don't let Nagle delay the second write
+                clientSock.setTcpNoDelay(true);
 
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
                         encdecFactory.get(),
                         protocolFactory.get(),
-                        connections);
+                        connections,
+                        this::execute); //The writer of the client runs on the same kind of thread as its reader
                 
 
                 execute(handler);
@@ -52,7 +58,7 @@ public abstract class BaseServer<T> implements Server<T> {
         } catch (IOException ex) {
         }
 
-        System.out.println("server closed!!!");
+        Log.info("server closed!!!");
     }
 
     @Override
@@ -61,6 +67,9 @@ public abstract class BaseServer<T> implements Server<T> {
 			sock.close();
     }
 
-    protected abstract void execute(BlockingConnectionHandler<T>  handler);
+    /**
+     * Runs a task of a client - its handler (reader) or its writer.
+     */
+    protected abstract void execute(Runnable task);
 
 }
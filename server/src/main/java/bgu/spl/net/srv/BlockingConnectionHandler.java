@@ -2,26 +2,50 @@ package bgu.spl.net.srv;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.BidiMessagingProtocol;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int BUFFER_SIZE = 1 << 13; //8k
+    private static final PendingWrite END_OF_STREAM = new PendingWrite(); //Queued once the client is done
+    private static final long WRITER_IDLE_MILLIS = 1000; //A writer with nothing to send for this long ends
+
     private final BidiMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
+    private InputStream in;
+    private WritableByteChannel out;
     protected volatile boolean connected;
     private final Connections<T> connections;
+    private final Executor writerExecutor;
+    private final BlockingQueue<PendingWrite> outgoing = new ArrayBlockingQueue<>(PendingWrite.QUEUE_CAPACITY);
+    private volatile boolean writerStopped = false;
+    private final AtomicBoolean writerRunning = new AtomicBoolean(false);
+    private int connectionId;
 
-    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, BidiMessagingProtocol<T> protocol, Connections<T> connections) {
+    /**
+     * @param writerExecutor - runs the writer of the connection, that sends the queued messages to the client.
+     *                       The writer is started when messages are queued and ends once it was idle for a while -
+     *                       an idle client has no thread but its reader
+     */
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, BidiMessagingProtocol<T> protocol,
+                                     Connections<T> connections, Executor writerExecutor) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
         this.connections = connections;
+        this.writerExecutor = writerExecutor;
         connected = false;
     }
 
@@ -29,36 +53,42 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     @Override
     public void run() {
 
-        try (Socket sock = this.sock) { //just for automatic closing
+        try {
             int read;
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            in = sock.getInputStream();
+            //Sockets accepted through a channel can transfer file regions to the socket without copying
+            out = sock.getChannel() != null ? sock.getChannel() : Channels.newChannel(sock.getOutputStream());
 
-            int connectionId = connections.getNewConnectionId();
+            connectionId = connections.getNewConnectionId();
 
             protocol.start( connectionId , connections);
             connected = connections.connect(connectionId, this);
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
+            while (!protocol.shouldTerminate() && connected && (read = in.read(buffer.array())) >= 0) {
 
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) 
-                    protocol.process(nextMessage);
+                ServerMetrics.get().bytesRead(read);
+                connections.touch(connectionId);
+                buffer.position(0).limit(read);
+                while (!protocol.shouldTerminate() && buffer.hasRemaining()) {
+                    T nextMessage = encdec.decode(buffer);
+                    if (nextMessage != null)
+                        protocol.process(nextMessage);
+                }
             }
 
         } catch (IOException ex) {
-            ex.printStackTrace();
+            if (connected) //Otherwise the connection was closed by the server (idle or overflowing client)
+                ex.printStackTrace();
         } 
 
         connected = false;
+        connections.disconnect(connectionId);
+        protocol.connectionClosed();
 
-        try {
-            close();
-        } catch(IOException ex) {
-            ex.printStackTrace();
-        }
-
+        //The writer closes the socket once the messages queued so far (the reply to DISC) are sent
+        enqueue(END_OF_STREAM);
     }
 
     /**
@@ -72,16 +102,93 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     /**
      * A method that sends a message 'msg' to the represented client.
+     * The message is queued for the writer - waits while the queue is full.
      */
     @Override
     public void send(T msg) {
-        if (msg != null) {
-            try{
-                out.write(encdec.encode(msg));
-                out.flush(); 
-            } catch(IOException ex){
-                ex.printStackTrace();
+        if (msg != null)
+            enqueue(new PendingWrite(ByteBuffer.wrap(encdec.encode(msg))));
+    }
+
+    /**
+     * A method that queues 'msg' to the represented client only if the queue is not full, without waiting.
+     */
+    @Override
+    public boolean offer(T msg) {
+        if (writerStopped || !outgoing.offer(new PendingWrite(ByteBuffer.wrap(encdec.encode(msg)))))
+            return false;
+        startWriter();
+        return true;
+    }
+
+    /**
+     * A method that sends 'header' followed by a region of 'file' to the represented client.
+     */
+    @Override
+    public void sendFileRegion(T header, FileChannel file, long position, long count) {
+        enqueue(new PendingWrite(ByteBuffer.wrap(encdec.encode(header)), file, position, count));
+    }
+
+    /**
+     * A method that sends 'header' followed by 'data' to the represented client.
+     */
+    @Override
+    public void send(T header, ByteBuffer data) {
+        enqueue(new PendingWrite(ByteBuffer.wrap(encdec.encode(header)), data));
+    }
+
+    private void enqueue(PendingWrite pendingWrite) {
+        if (writerStopped) //The connection is broken - nobody will send the message
+            return;
+
+        try {
+            outgoing.put(pendingWrite);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        startWriter();
+    }
+
+    // Starts the writer if it is not running - a writer runs as long as there are messages to send
+    private void startWriter() {
+        if (writerRunning.compareAndSet(false, true))
+            writerExecutor.execute(this::writeLoop);
+    }
+
+    /**
+     * Sends the queued messages one after the other, so that the bytes of two messages are never
+     * interleaved and a slow client never blocks the threads that send messages to it (broadcasts).
+     * The reader cannot send them itself - it is blocked reading while its client is idle, and broadcasts
+     * must still reach it. The writer ends once the queue was empty for WRITER_IDLE_MILLIS, and is started
+     * again by the next queued message.
+     */
+    private void writeLoop() {
+        try {
+            PendingWrite pendingWrite;
+            while ((pendingWrite = outgoing.poll(WRITER_IDLE_MILLIS, TimeUnit.MILLISECONDS)) != END_OF_STREAM) {
+                if (pendingWrite != null) {
+                    while (!pendingWrite.writeTo(out));
+                    continue;
+                }
+                writerRunning.set(false);
+                //A message queued before the flag was cleared did not start a writer - this one goes on
+                if (outgoing.isEmpty() || !writerRunning.compareAndSet(false, true))
+                    return;
             }
+        } catch (IOException ex) {
+            if (connected) //Otherwise the socket was closed on purpose
+                ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        writerStopped = true;
+        outgoing.clear(); //Releases a reader that waits for room in the queue
+
+        try {
+            close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
         }
     }
 }
@@ -6,6 +6,8 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +21,22 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Queues 'msg' only if the client's outbound queue is not full - never waits.
+     * @return true iff the message was queued.
+     */
+    boolean offer(T msg);
+
+    /**
+     * Sends 'header' followed by 'count' bytes of 'file' starting at 'position'.
+     * The file bytes are moved from the file channel to the socket without being copied into the heap.
+     */
+    void sendFileRegion(T header, FileChannel file, long position, long count);
+
+    /**
+     * Sends 'header' followed by the remaining bytes of 'data'.
+     * 'data' must not be modified until it is written - it is sent as is, without being copied.
+     */
+    void send(T header, ByteBuffer data);
+
 }
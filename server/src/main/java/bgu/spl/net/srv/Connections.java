@@ -1,5 +1,8 @@
 package bgu.spl.net.srv;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 public interface Connections<T> {
 
     /**
@@ -14,6 +17,20 @@ public interface Connections<T> {
      */
     boolean send(int connectionId, T msg);
 
+    /**
+     * A method that sends a message from the server to a specific client, followed by
+     * 'count' bytes of 'file' starting at 'position' (zero-copy).
+     * @return true iff message was sent.
+     */
+    boolean sendFileRegion(int connectionId, T header, FileChannel file, long position, long count);
+
+    /**
+     * A method that sends a message from the server to a specific client, followed by
+     * the remaining bytes of 'data' (sent without being copied).
+     * @return true iff message was sent.
+     */
+    boolean send(int connectionId, T header, ByteBuffer data);
+
     /**
      * A method that disconnects a client from the server - removes
      * it from active clients map, and from logged in users.
@@ -39,9 +56,16 @@ public interface Connections<T> {
      */
     boolean isLoggedIn(int connectionId);
 
+    /**
+     * A method that records that bytes were read from the client (called by the connection handlers),
+     * clients that send nothing for a while may be disconnected.
+     */
+    default void touch(int connectionId) {
+    }
+
     /**
      * A method that is used for broadcasting messages from the server 
-     * to all active logged-in clients.
+     * to all active logged-in clients. The messages are queued - the method never waits for a client.
      */
     void sendAll(T msg);
 }
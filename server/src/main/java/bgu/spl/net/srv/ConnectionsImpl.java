@@ -1,12 +1,38 @@
 package bgu.spl.net.srv;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
-    private ConcurrentHashMap<Integer, ConnectionHandler<T>> activeClients = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<Integer, String> loggedInUsers = new ConcurrentHashMap<>();
-    private int connectionIdGenerator = 1;
+    /**
+     * What to do with a client whose outbound queue is full when a broadcast is sent to it
+     */
+    public enum OverflowPolicy {
+        DROP, //The client misses the broadcast
+        DISCONNECT //The client is disconnected
+    }
+
+    private final OverflowPolicy overflowPolicy;
+    private final SessionRegistry<T> sessions;
+
+    public ConnectionsImpl() {
+        this(OverflowPolicy.DROP);
+    }
+
+    public ConnectionsImpl(OverflowPolicy overflowPolicy) {
+        this(overflowPolicy, 0);
+    }
+
+    /**
+     * @param idleTimeoutMillis - clients that send nothing for this long are disconnected (0 never disconnects them)
+     */
+    public ConnectionsImpl(OverflowPolicy overflowPolicy, long idleTimeoutMillis) {
+        this.overflowPolicy = overflowPolicy;
+        this.sessions = new SessionRegistry<>(idleTimeoutMillis);
+        ServerMetrics.get().track(this);
+    }
 
     /**
      * A method that adds a client to the activeClient's map.
@@ -14,7 +40,8 @@ public class ConnectionsImpl<T> implements Connections<T> {
      */
     @Override
     public boolean connect(int connectionId, ConnectionHandler<T> handler){
-        return activeClients.put( connectionId , handler ) == null;
+        ServerMetrics.get().connectionAccepted();
+        return sessions.add(connectionId, handler);
     }
 
     /**
@@ -23,28 +50,57 @@ public class ConnectionsImpl<T> implements Connections<T> {
      */
     @Override
     public boolean send(int connectionId, T msg){ //USE ConnectionHandler.send method
-        
-        if(activeClients.containsKey(connectionId)) {
-            ConnectionHandler<T> handler = activeClients.get(connectionId);
-            
-            if(handler == null)
-                return false;
-            
-            handler.send(msg);
-            return true;
-        }
 
-        return false;
+        ConnectionHandler<T> handler = handlerOf(connectionId);
+
+        if(handler == null)
+            return false;
+
+        handler.send(msg);
+        return true;
+    }
+
+    /**
+     * A method that sends a message from the server to a specific client, followed by
+     * 'count' bytes of 'file' starting at 'position' (zero-copy).
+     * @return true iff message was sent.
+     */
+    @Override
+    public boolean sendFileRegion(int connectionId, T header, FileChannel file, long position, long count) {
+
+        ConnectionHandler<T> handler = handlerOf(connectionId);
+
+        if(handler == null)
+            return false;
+
+        handler.sendFileRegion(header, file, position, count);
+        return true;
+    }
+
+    /**
+     * A method that sends a message from the server to a specific client, followed by
+     * the remaining bytes of 'data' (sent without being copied).
+     * @return true iff message was sent.
+     */
+    @Override
+    public boolean send(int connectionId, T header, ByteBuffer data) {
+
+        ConnectionHandler<T> handler = handlerOf(connectionId);
+
+        if(handler == null)
+            return false;
+
+        handler.send(header, data);
+        return true;
     }
 
     /**
      * A method that disconnects a client from the server - removes
-     * him from activeClients map, and from logged in users.
+     * its session, and releases its username.
      */
     @Override
     public void disconnect(int connectionId){
-        activeClients.remove(connectionId);
-        loggedInUsers.remove(connectionId);
+        sessions.remove(connectionId);
     }
 
     /**
@@ -53,38 +109,78 @@ public class ConnectionsImpl<T> implements Connections<T> {
      */
     @Override
     public int getNewConnectionId(){
-        return ++connectionIdGenerator;
+        return sessions.newConnectionId();
     }
 
 
     /**
      * A method that implements a user login to the server.
+     * The username is claimed atomically - it fails if another client holds it, or this client is already logged in.
      * @return true iff use has logged in succesfully.
      */
     @Override
     public boolean login(int connectionId , String username) {
-        if(loggedInUsers.contains(username))
-            return false;
-
-        loggedInUsers.put(connectionId , username);
-        return true;
+        return sessions.login(connectionId, username);
     }
 
     /**
      * @return true iff Client with this connection id has already logged in to the server.
      */
+    @Override
     public boolean isLoggedIn(int connectionId) {
-        return loggedInUsers.containsKey(connectionId);
+        Session<T> session = sessions.get(connectionId);
+        return session != null && session.isLoggedIn();
+    }
+
+    /**
+     * A method that records that bytes were read from the client - resets its idle time.
+     */
+    @Override
+    public void touch(int connectionId) {
+        sessions.touch(connectionId);
+    }
+
+    int activeConnections() {
+        return sessions.size();
+    }
+
+    int loggedInUsers() {
+        return sessions.loggedInCount();
     }
 
     /**
      * A method that is used for broadcasting messages from the server to all clients.
+     * The message is only queued to every client, clients whose queue is full are handled
+     * according to the overflow policy.
      */
     public void sendAll(T msg) {
 
-        for(Integer clientId : loggedInUsers.keySet()) {
+        for(Session<T> session : sessions.loggedIn()) {
+
+            ConnectionHandler<T> handler = session.handler();
+            if(handler.offer(msg))
+                continue;
 
-            activeClients.get(clientId).send(msg);
+            int clientId = session.connectionId();
+
+            if(overflowPolicy == OverflowPolicy.DISCONNECT) {
+                ServerMetrics.get().overflowDisconnect();
+                Log.warn("Client " + clientId + " does not keep up with the broadcasts - disconnecting");
+                try {
+                    handler.close();
+                } catch(IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            else {
+                ServerMetrics.get().broadcastDropped();
+                Log.warn("Client " + clientId + " does not keep up with the broadcasts - message dropped");
+            }
         }
     }
+
+    private ConnectionHandler<T> handlerOf(int connectionId) {
+        Session<T> session = sessions.get(connectionId);
+        return session != null ? session.handler() : null;
+    }
 }
@@ -0,0 +1,202 @@
+package bgu.spl.net.srv;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log. Messages are put in a bounded, lock-free ring buffer and written to the console by a
+ * background thread, so logging never makes a client's thread wait for the console (or for another client).
+ * When the buffer is full the message is dropped and counted - the log never slows down the server.
+ *
+ * Messages below the current level are ignored. Messages that are expensive to build (per packet messages)
+ * should be guarded by {@link #isEnabled(Level)}, so they cost nothing when their level is disabled:
+ * <pre>
+ *     if (Log.isEnabled(Log.Level.TRACE))
+ *         Log.trace("Block number " + blockNumber + " received");
+ * </pre>
+ * The level is set with -Dtftp.log.level=TRACE|DEBUG|INFO|WARN|ERROR|OFF (default INFO), and can be changed
+ * while the server runs through the server's MBean (bgu.spl.net:type=Server).
+ */
+public final class Log {
+
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int BUFFER_CAPACITY = ringCapacity(Integer.getInteger("tftp.log.buffer", 8192));
+    private static final long MAX_PARK_NANOS = 10_000_000; //The writer checks the buffer at least every 10ms
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = initialLevel();
+
+    //The ring buffer: a producer claims a slot by advancing 'tail', fills it and publishes it by setting its
+    //sequence to position + 1. The writer consumes the slot and frees it by setting its sequence to position + capacity.
+    private static final Entry[] entries = new Entry[BUFFER_CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head = 0; //Accessed by the writer only (under the class lock)
+    private static final LongAdder droppedMessages = new LongAdder();
+    private static long reportedDroppedMessages = 0;
+
+    private static final Thread writer;
+    private static volatile boolean writerIsWaiting = false;
+
+    static {
+        for (int i = 0; i < entries.length; i++)
+            entries[i] = new Entry(i);
+
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::writePending, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * @return the number of messages that were dropped because the buffer was full
+     */
+    public static long droppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    public static void trace(String message) {
+        log(Level.TRACE, message);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    public static void log(Level messageLevel, String message) {
+        if (!isEnabled(messageLevel))
+            return;
+
+        long position = tail.get();
+        Entry entry;
+        while (true) {
+            entry = entries[(int) (position & (BUFFER_CAPACITY - 1))];
+            long sequence = entry.sequence;
+            if (sequence == position) { //The slot is free
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (sequence < position) { //The writer did not free the slot yet - the buffer is full
+                droppedMessages.increment();
+                return;
+            } else //Another producer claimed the slot
+                position = tail.get();
+        }
+
+        entry.level = messageLevel;
+        entry.timeMillis = System.currentTimeMillis();
+        entry.threadName = Thread.currentThread().getName();
+        entry.message = message;
+        entry.sequence = position + 1; //Publishes the message
+
+        if (writerIsWaiting)
+            LockSupport.unpark(writer);
+    }
+
+    //=================================HELPER METHODS==================================
+
+    private static void writeLoop() {
+        while (true) {
+            if (!writePending()) {
+                writerIsWaiting = true;
+                if (!hasPending()) //Rechecked after the flag is set - a message published before it would be missed
+                    LockSupport.parkNanos(MAX_PARK_NANOS);
+                writerIsWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Writes all of the published messages to the console.
+     * @return true if any message was written
+     */
+    private static synchronized boolean writePending() {
+        StringBuilder lines = new StringBuilder();
+        while (hasPending()) {
+            Entry entry = entries[(int) (head & (BUFFER_CAPACITY - 1))];
+            TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.timeMillis), lines);
+            lines.append(' ').append(entry.level).append(" [").append(entry.threadName).append("] ")
+                    .append(entry.message).append(System.lineSeparator());
+            entry.message = null;
+            entry.threadName = null;
+            entry.sequence = head + BUFFER_CAPACITY; //Frees the slot
+            head++;
+        }
+
+        long dropped = droppedMessages.sum();
+        if (dropped != reportedDroppedMessages) {
+            lines.append(dropped - reportedDroppedMessages).append(" log messages were dropped - the log buffer was full")
+                    .append(System.lineSeparator());
+            reportedDroppedMessages = dropped;
+        }
+
+        if (lines.length() == 0)
+            return false;
+        PrintStream out = System.out;
+        out.print(lines);
+        out.flush();
+        return true;
+    }
+
+    private static boolean hasPending() {
+        return entries[(int) (head & (BUFFER_CAPACITY - 1))].sequence == head + 1;
+    }
+
+    private static Level initialLevel() {
+        String configuredLevel = System.getProperty("tftp.log.level", "INFO");
+        try {
+            return Level.valueOf(configuredLevel.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Unknown log level " + configuredLevel + " - logging at INFO");
+            return Level.INFO;
+        }
+    }
+
+    private static int ringCapacity(int requestedCapacity) {
+        return Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1; //The next power of 2
+    }
+
+    private static final class Entry {
+        volatile long sequence;
+        Level level;
+        long timeMillis;
+        String threadName;
+        String message;
+
+        Entry(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
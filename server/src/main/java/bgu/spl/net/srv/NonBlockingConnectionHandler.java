@@ -0,0 +1,191 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.BidiMessagingProtocol;
+import bgu.spl.net.api.MessageEncoderDecoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
+
+    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
+    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+
+    private final BidiMessagingProtocol<T> protocol;
+    private final MessageEncoderDecoder<T> encdec;
+    private final BlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<>(); //Bounded only for offer (broadcasts)
+    private final SocketChannel chan;
+    private final Reactor<T> reactor;
+    private final int connectionId;
+    private final Connections<T> connections;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public NonBlockingConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            BidiMessagingProtocol<T> protocol,
+            SocketChannel chan,
+            Reactor<T> reactor,
+            int connectionId,
+            Connections<T> connections) {
+        this.chan = chan;
+        this.encdec = reader;
+        this.protocol = protocol;
+        this.reactor = reactor;
+        this.connectionId = connectionId;
+        this.connections = connections;
+    }
+
+    /**
+     * Reads the bytes that are currently available on the channel (called by the selector thread).
+     * @return a task that decodes and processes the read bytes, or null if the connection was closed.
+     */
+    public Runnable continueRead() {
+        ByteBuffer buf = leaseBuffer();
+
+        int read = -1;
+        try {
+            read = chan.read(buf);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+
+        boolean success = read != -1;
+        if (success) {
+            ServerMetrics.get().bytesRead(read);
+            connections.touch(connectionId);
+        }
+
+        if (success) {
+            buf.flip();
+            return () -> {
+                try {
+                    while (!protocol.shouldTerminate() && buf.hasRemaining()) {
+                        T nextMessage = encdec.decode(buf);
+                        if (nextMessage != null)
+                            protocol.process(nextMessage);
+                    }
+                } finally {
+                    releaseBuffer(buf);
+                }
+            };
+        } else {
+            releaseBuffer(buf);
+            close();
+            return null;
+        }
+
+    }
+
+    /**
+     * Writes as much of the pending messages as the channel accepts (called by the selector thread).
+     */
+    public void continueWrite() {
+        while (!writeQueue.isEmpty()) {
+            try {
+                PendingWrite top = writeQueue.peek();
+                if (!top.writeTo(chan)) {
+                    return;
+                } else {
+                    writeQueue.remove();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                close();
+                return;
+            }
+        }
+
+        if (writeQueue.isEmpty()) {
+            if (protocol.shouldTerminate())
+                close();
+            else
+                reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * A method that closes the connection between the server and the represented client.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+
+        try {
+            chan.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        connections.disconnect(connectionId);
+        reactor.submit(this, protocol::connectionClosed); //After the tasks of the connection that are already submitted
+    }
+
+    public boolean isClosed() {
+        return !chan.isOpen();
+    }
+
+    /**
+     * A method that queues a message 'msg' to the represented client,
+     * the message is written by the selector thread once the channel is writable.
+     */
+    @Override
+    public void send(T msg) {
+        if (msg != null) {
+            writeQueue.add(new PendingWrite(ByteBuffer.wrap(encdec.encode(msg))));
+            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * A method that queues 'msg' to the represented client only if less than
+     * {@link PendingWrite#QUEUE_CAPACITY} writes are already queued.
+     */
+    @Override
+    public boolean offer(T msg) {
+        if (writeQueue.size() >= PendingWrite.QUEUE_CAPACITY || isClosed())
+            return false;
+
+        send(msg);
+        return true;
+    }
+
+    /**
+     * A method that queues 'header' followed by a region of 'file' to the represented client,
+     * the file bytes are transferred straight from the file channel to the socket channel.
+     */
+    @Override
+    public void sendFileRegion(T header, FileChannel file, long position, long count) {
+        writeQueue.add(new PendingWrite(ByteBuffer.wrap(encdec.encode(header)), file, position, count));
+        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * A method that queues 'header' followed by 'data' to the represented client.
+     */
+    @Override
+    public void send(T header, ByteBuffer data) {
+        writeQueue.add(new PendingWrite(ByteBuffer.wrap(encdec.encode(header)), data));
+        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private static ByteBuffer leaseBuffer() {
+        ByteBuffer buff = BUFFER_POOL.poll();
+        if (buff == null) {
+            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+        }
+
+        buff.clear();
+        return buff;
+    }
+
+    private static void releaseBuffer(ByteBuffer buff) {
+        BUFFER_POOL.add(buff);
+    }
+
+}
@@ -0,0 +1,82 @@
+package bgu.spl.net.srv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Bytes that are waiting to be written to a client - in memory buffers, optionally followed
+ * by a region of a file. The buffers are written with a single gathering write when the channel
+ * supports it. The file region is transferred by the OS straight from the file
+ * channel to the socket (sendfile), without being copied into the java heap.
+ */
+final class PendingWrite {
+
+    /**
+     * Maximal number of writes queued for a single client (-Dtftp.outbound.queue)
+     */
+    static final int QUEUE_CAPACITY = Integer.getInteger("tftp.outbound.queue", 256);
+
+    private final ByteBuffer[] buffers;
+    private int firstBuffer; //Index of the first buffer that was not completely written
+    private final FileChannel file;
+    private long position;
+    private long remaining;
+
+    PendingWrite(ByteBuffer... buffers) {
+        this(buffers, null, 0, 0);
+    }
+
+    PendingWrite(ByteBuffer buffer, FileChannel file, long position, long count) {
+        this(new ByteBuffer[] { buffer }, file, position, count);
+    }
+
+    private PendingWrite(ByteBuffer[] buffers, FileChannel file, long position, long count) {
+        this.buffers = buffers;
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    /**
+     * Writes as much as 'chan' accepts.
+     * @return true iff all of the bytes were written.
+     */
+    boolean writeTo(WritableByteChannel chan) throws IOException {
+
+        while (skipWrittenBuffers() < buffers.length) {
+            long written;
+            if (chan instanceof GatheringByteChannel)
+                written = ((GatheringByteChannel) chan).write(buffers, firstBuffer, buffers.length - firstBuffer);
+            else
+                written = chan.write(buffers[firstBuffer]);
+            ServerMetrics.get().bytesWritten(written);
+
+            if (written == 0 && skipWrittenBuffers() < buffers.length)
+                return false; //The channel can not accept more bytes right now
+        }
+
+        while (remaining > 0) {
+            long transferred = file.transferTo(position, remaining, chan);
+            if (transferred == 0) {
+                if (position >= file.size())
+                    throw new EOFException("File was truncated while it was being sent");
+                return false; //The channel can not accept more bytes right now
+            }
+            ServerMetrics.get().bytesWritten(transferred);
+            position += transferred;
+            remaining -= transferred;
+        }
+
+        return true;
+    }
+
+    private int skipWrittenBuffers() {
+        while (firstBuffer < buffers.length && !buffers[firstBuffer].hasRemaining())
+            firstBuffer++;
+        return firstBuffer;
+    }
+}
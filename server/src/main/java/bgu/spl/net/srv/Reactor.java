@@ -0,0 +1,167 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.BidiMessagingProtocol;
+import bgu.spl.net.api.MessageEncoderDecoder;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * A server that handles all of its clients with a single selector thread,
+ * and processes the decoded messages on a fixed size pool of worker threads.
+ */
+public class Reactor<T> implements Server<T> {
+
+    private final int port;
+    private final Supplier<BidiMessagingProtocol<T>> protocolFactory;
+    private final Supplier<MessageEncoderDecoder<T>> readerFactory;
+    private final Connections<T> connections;
+    private final ActorThreadPool pool;
+    private Selector selector;
+
+    private Thread selectorThread;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            Connections<T> connections) {
+
+        this.pool = new ActorThreadPool(numThreads);
+        this.port = port;
+        this.protocolFactory = protocolFactory;
+        this.readerFactory = readerFactory;
+        this.connections = connections;
+    }
+
+    @Override
+    public void serve() {
+        selectorThread = Thread.currentThread();
+        try (Selector selector = Selector.open();
+                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+
+            this.selector = selector; //just to be able to close
+
+            serverSock.bind(new InetSocketAddress(port));
+            serverSock.configureBlocking(false);
+            serverSock.register(selector, SelectionKey.OP_ACCEPT);
+            Log.info("Server started");
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        handleAccept(serverSock, selector);
+                    } else {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+
+            }
+
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+
+        Log.info("server closed!!!");
+        pool.shutdown();
+    }
+
+    /**
+     * Changes the operations the selector waits for on the given channel.
+     * May be called from any thread - the change itself always happens on the selector thread.
+     */
+    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
+        final SelectionKey key = chan.keyFor(selector);
+        if (key == null) //the channel was already closed
+            return;
+
+        if (Thread.currentThread() == selectorThread) {
+            if (key.isValid())
+                key.interestOps(ops);
+        } else {
+            selectorTasks.add(() -> {
+                if (key.isValid())
+                    key.interestOps(ops);
+            });
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs 'task' on the worker threads, after all of the tasks that were already submitted for 'handler'.
+     */
+    /*package*/ void submit(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        pool.submit(handler, task);
+    }
+
+    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
+        SocketChannel clientChan = serverChan.accept();
+        clientChan.configureBlocking(false);
+        //A DATA packet is written as a header followed by the file region - don't let Nagle delay the second write
+        clientChan.socket().setTcpNoDelay(true);
+
+        BidiMessagingProtocol<T> protocol = protocolFactory.get();
+        int connectionId = connections.getNewConnectionId();
+
+        final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
+                readerFactory.get(),
+                protocol,
+                clientChan,
+                this,
+                connectionId,
+                connections);
+
+        protocol.start(connectionId, connections);
+        connections.connect(connectionId, handler);
+        clientChan.register(selector, SelectionKey.OP_READ, handler);
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler, task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (selector != null)
+            selector.close();
+    }
+
+}
@@ -28,12 +28,58 @@ public interface Server<T> extends Closeable {
 
         return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, connections) {
             @Override
-            protected void execute(BlockingConnectionHandler<T>  handler) {
-                new Thread(handler).start();
+            protected void execute(Runnable task) {
+                new Thread(task).start();
             }
         };
 
     }
 
+    /**
+     * This function returns a new instance of a thread per client pattern server
+     * that runs every client on its own virtual thread (requires Java 21 or later at runtime)
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<BidiMessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory,
+            Connections<T> connections) {
+
+        if (!VirtualThreads.isSupported())
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, connections) {
+            @Override
+            protected void execute(Runnable task) {
+                VirtualThreads.start(task);
+            }
+        };
+
+    }
+
+    /**
+     * This function returns a new instance of a reactor pattern server
+     * @param nthreads Number of threads available for protocol processing
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int port,
+            Supplier<BidiMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            Connections<T> connections) {
+
+        return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory, connections);
+    }
 
 }
@@ -0,0 +1,126 @@
+package bgu.spl.net.srv;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Connection level metrics, shared by all of the connections of the server (and the level of the server's log).
+ * The counters are LongAdders - connections update them concurrently without contending on a single value.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder droppedBroadcasts = new LongAdder();
+    private final LongAdder overflowDisconnects = new LongAdder();
+    private final LongAdder idleSessionsClosed = new LongAdder();
+    private volatile ConnectionsImpl<?> connections; //The source of the active connections/logged in users
+
+    private ServerMetrics() {
+    }
+
+    public static ServerMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Publishes the metrics as an MBean named bgu.spl.net:type=Server.
+     */
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("bgu.spl.net:type=Server"));
+        } catch (JMException ex) {
+            Log.warn("Could not publish the server metrics: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        ConnectionsImpl<?> current = connections;
+        return current != null ? current.activeConnections() : 0;
+    }
+
+    @Override
+    public int getLoggedInUsers() {
+        ConnectionsImpl<?> current = connections;
+        return current != null ? current.loggedInUsers() : 0;
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getDroppedBroadcasts() {
+        return droppedBroadcasts.sum();
+    }
+
+    @Override
+    public long getOverflowDisconnects() {
+        return overflowDisconnects.sum();
+    }
+
+    @Override
+    public long getIdleSessionsClosed() {
+        return idleSessionsClosed.sum();
+    }
+
+    @Override
+    public long getDroppedLogMessages() {
+        return Log.droppedMessages();
+    }
+
+    @Override
+    public String getLogLevel() {
+        return Log.getLevel().name();
+    }
+
+    @Override
+    public void setLogLevel(String level) {
+        Log.setLevel(Log.Level.valueOf(level.toUpperCase()));
+    }
+
+    void track(ConnectionsImpl<?> connections) {
+        this.connections = connections;
+    }
+
+    void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    void bytesRead(long count) {
+        bytesRead.add(count);
+    }
+
+    void bytesWritten(long count) {
+        bytesWritten.add(count);
+    }
+
+    void broadcastDropped() {
+        droppedBroadcasts.increment();
+    }
+
+    void overflowDisconnect() {
+        overflowDisconnects.increment();
+    }
+
+    void idleSessionClosed() {
+        idleSessionsClosed.increment();
+    }
+}
@@ -0,0 +1,32 @@
+package bgu.spl.net.srv;
+
+/**
+ * The connection level metrics of the server, as published over JMX (bgu.spl.net:type=Server).
+ */
+public interface ServerMetricsMXBean {
+
+    int getActiveConnections();
+
+    int getLoggedInUsers();
+
+    long getAcceptedConnections();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getDroppedBroadcasts();
+
+    long getOverflowDisconnects();
+
+    long getIdleSessionsClosed();
+
+    long getDroppedLogMessages();
+
+    /**
+     * The level of the server's log - TRACE, DEBUG, INFO, WARN, ERROR or OFF.
+     */
+    String getLogLevel();
+
+    void setLogLevel(String level);
+}
@@ -0,0 +1,50 @@
+package bgu.spl.net.srv;
+
+/**
+ * The state of a connected client, as kept by the {@link SessionRegistry}.
+ */
+final class Session<T> {
+
+    private final int connectionId;
+    private final ConnectionHandler<T> handler;
+    private final long connectedAt = System.nanoTime();
+    private volatile long lastActivity = connectedAt; //System.nanoTime() of the last bytes read from the client
+    private volatile String username; //null until the client logs in
+
+    Session(int connectionId, ConnectionHandler<T> handler) {
+        this.connectionId = connectionId;
+        this.handler = handler;
+    }
+
+    int connectionId() {
+        return connectionId;
+    }
+
+    ConnectionHandler<T> handler() {
+        return handler;
+    }
+
+    String username() {
+        return username;
+    }
+
+    boolean isLoggedIn() {
+        return username != null;
+    }
+
+    long connectedAt() {
+        return connectedAt;
+    }
+
+    long lastActivity() {
+        return lastActivity;
+    }
+
+    void loggedIn(String username) {
+        this.username = username;
+    }
+
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+}
@@ -0,0 +1,128 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The sessions of the connected clients, indexed both by connection id and by the username of the logged in ones.
+ * Every lookup is a single hash map access - none of the operations scan the sessions, except for the
+ * idle sessions reaper that runs in the background.
+ * A username is claimed atomically (putIfAbsent) - two clients that log in with the same name at the same time
+ * never both succeed.
+ */
+final class SessionRegistry<T> {
+
+    private final AtomicInteger connectionIdGenerator = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Session<T>> sessionsById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Session<T>> sessionsByUsername = new ConcurrentHashMap<>();
+
+    /**
+     * @param idleTimeoutMillis - sessions that read nothing from their client for this long are closed (0 never closes them)
+     */
+    SessionRegistry(long idleTimeoutMillis) {
+        if (idleTimeoutMillis > 0) {
+            ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "session-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(idleTimeoutMillis / 4, 1);
+            reaper.scheduleWithFixedDelay(() -> closeIdleSessions(idleTimeoutMillis), period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    int newConnectionId() {
+        return connectionIdGenerator.incrementAndGet();
+    }
+
+    /**
+     * @return false if a session with the same connection id is already registered.
+     */
+    boolean add(int connectionId, ConnectionHandler<T> handler) {
+        return sessionsById.putIfAbsent(connectionId, new Session<>(connectionId, handler)) == null;
+    }
+
+    Session<T> get(int connectionId) {
+        return sessionsById.get(connectionId);
+    }
+
+    /**
+     * Claims 'username' for the session of 'connectionId'.
+     * @return false if the session is not registered, is already logged in, or the username is taken.
+     */
+    boolean login(int connectionId, String username) {
+        Session<T> session = sessionsById.get(connectionId);
+        if (session == null || session.isLoggedIn())
+            return false;
+
+        if (sessionsByUsername.putIfAbsent(username, session) != null)
+            return false;
+
+        session.loggedIn(username);
+        if (sessionsById.get(connectionId) != session) { //Removed while logging in - release the name it claimed
+            sessionsByUsername.remove(username, session);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the session of 'connectionId' and releases its username (does nothing if it was already removed).
+     */
+    void remove(int connectionId) {
+        Session<T> session = sessionsById.remove(connectionId);
+        if (session != null && session.isLoggedIn())
+            sessionsByUsername.remove(session.username(), session);
+    }
+
+    void touch(int connectionId) {
+        Session<T> session = sessionsById.get(connectionId);
+        if (session != null)
+            session.touch();
+    }
+
+    /**
+     * A view of the sessions of the logged in clients.
+     */
+    Collection<Session<T>> loggedIn() {
+        return sessionsByUsername.values();
+    }
+
+    int size() {
+        return sessionsById.size();
+    }
+
+    int loggedInCount() {
+        return sessionsByUsername.size();
+    }
+
+    //=================================HELPER METHODS==================================
+
+    private void closeIdleSessions(long idleTimeoutMillis) {
+        long now = System.nanoTime();
+        long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+
+        for (Session<T> session : sessionsById.values()) {
+            if (now - session.lastActivity() < idleTimeoutNanos)
+                continue;
+
+            ServerMetrics.get().idleSessionClosed();
+            Log.info("Client " + (session.isLoggedIn() ? session.username() : session.connectionId())
+                    + " was idle for " + TimeUnit.NANOSECONDS.toSeconds(now - session.lastActivity())
+                    + " seconds (connected " + TimeUnit.NANOSECONDS.toSeconds(now - session.connectedAt())
+                    + " seconds ago) - disconnecting");
+            //Removed right away, so that its username is released even if the handler is slow to notice the close
+            remove(session.connectionId());
+            try {
+                session.handler().close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package bgu.spl.net.srv;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Starts virtual threads when the running JVM provides them (Java 21 and later).
+ * The server is compiled for Java 17, so Thread.startVirtualThread is looked up at runtime.
+ */
+final class VirtualThreads {
+
+    private static final MethodHandle START_VIRTUAL_THREAD = lookupStartVirtualThread();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true iff the running JVM supports virtual threads.
+     */
+    static boolean isSupported() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    /**
+     * Starts a new virtual thread that runs 'task'.
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads.
+     */
+    static Thread start(Runnable task) {
+        if (START_VIRTUAL_THREAD == null)
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+
+        try {
+            return (Thread) START_VIRTUAL_THREAD.invokeExact(task);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static MethodHandle lookupStartVirtualThread() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread",
+                    MethodType.methodType(Thread.class, Runnable.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            return null;
+        }
+    }
+}